@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Exposes a synchronous {@link MemcachedCommandHandler} as an
+ * {@link AsyncMemcachedCommandHandler}. Commands run in the calling (I/O) thread.
+ */
+public final class AsyncCommandHandlerAdapter implements AsyncMemcachedCommandHandler {
+
+    @Nonnull
+    private final MemcachedCommandHandler delegate;
+
+    public AsyncCommandHandlerAdapter(@Nonnull MemcachedCommandHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Nonnull
+    public MemcachedCommandHandler getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public CompletionStage<byte[]> handleGet(byte[] key) {
+        final CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+        try {
+            f.complete(delegate.handleGet(key));
+        } catch (Throwable e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    @Override
+    public CompletionStage<Short> handleSet(byte[] key, byte[] value, int flags, int expiry) {
+        final CompletableFuture<Short> f = new CompletableFuture<Short>();
+        try {
+            f.complete(delegate.handleSet(key, value, flags, expiry));
+        } catch (Throwable e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+}
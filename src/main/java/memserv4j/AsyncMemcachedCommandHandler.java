@@ -0,0 +1,43 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Non-blocking variant of {@link MemcachedCommandHandler}. The returned stages may be completed
+ * by any thread; responses are written back in the order the requests were received.
+ *
+ * @see AsyncCommandHandlerAdapter
+ */
+public interface AsyncMemcachedCommandHandler {
+
+    /**
+     * @return a stage completed with the stored (internal) value, or with null if not found
+     */
+    @Nonnull
+    CompletionStage<byte[]> handleGet(@Nonnull byte[] key);
+
+    /**
+     * @return a stage completed with the response status
+     */
+    @Nonnull
+    CompletionStage<Short> handleSet(@Nonnull byte[] key, @Nonnull byte[] value, int flags,
+            int expiry);
+
+}
@@ -21,15 +21,29 @@ import memserv4j.binary.BinaryProtocol.Packet;
 import memserv4j.binary.BinaryProtocol.ResponseStatus;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
+/**
+ * Decodes a binary protocol frame into a {@link Packet}. The body and the frame are slices of the
+ * received buffer, i.e., no bytes are copied.
+ */
 public final class BinaryCommandDecoder extends FrameDecoder {
 
+    private final byte magic;
+
     public BinaryCommandDecoder() {
+        this(BinaryProtocol.MAGIC_BYTE_REQUEST);
+    }
+
+    /**
+     * @param magic the expected magic, i.e., {@link BinaryProtocol#MAGIC_BYTE_RESPONSE} to
+     *        decode responses of upstream servers
+     */
+    public BinaryCommandDecoder(byte magic) {
         super();
+        this.magic = magic;
     }
 
     @Override
@@ -39,26 +53,27 @@ public final class BinaryCommandDecoder extends FrameDecoder {
             return null;
         }
 
-        int totalBody = buffer.getInt(8);
+        int totalBody = buffer.getInt(buffer.readerIndex() + 8);
         int required = BinaryProtocol.HEADER_LENGTH + totalBody;
         if (buffer.readableBytes() < required) {
             return null;
         }
 
+        final int frameIndex = buffer.readerIndex();
         Header header = new Header();
         header.decode(buffer);
         assert (header.totalBody == totalBody);
 
-        if (header.magic != BinaryProtocol.MAGIC_BYTE_REQUEST) {
+        if (header.magic != magic) {
             channel.close();
             throw new MemcachedException(ResponseStatus.UNKNOWN,
                 String.format("Invalid magic: %x\n", header.magic));
         }
 
-        ChannelBuffer body = ChannelBuffers.buffer(totalBody);
-        buffer.readBytes(body, totalBody);
+        ChannelBuffer body = buffer.readSlice(totalBody);
+        ChannelBuffer frame = buffer.slice(frameIndex, required);
 
-        return new Packet(header, body);
+        return new Packet(header, body, frame);
     }
 
 }
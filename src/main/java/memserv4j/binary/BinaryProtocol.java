@@ -207,6 +207,8 @@ public final class BinaryProtocol {
                 return OPCODE_APPEND;
             case OPCODE_PREPENDQ:
                 return OPCODE_PREPEND;
+            case OPCODE_FLUSHQ:
+                return OPCODE_FLUSH;
             default:
                 return opcode;
         }
@@ -214,6 +216,7 @@ public final class BinaryProtocol {
 
     public static boolean surpressSuccessResponse(final byte opcode) {
         switch (opcode) {
+            case OPCODE_FLUSHQ:
             case OPCODE_SETQ:
             case OPCODE_ADDQ:
             case OPCODE_REPLACEQ:
@@ -234,10 +237,19 @@ public final class BinaryProtocol {
         final Header header;
         @Nullable
         final ChannelBuffer body;
+        /** the whole frame of the header and the body as received, if any */
+        @Nullable
+        final ChannelBuffer frame;
 
         public Packet(@Nonnull Header header, @Nullable ChannelBuffer body) {
+            this(header, body, null);
+        }
+
+        public Packet(@Nonnull Header header, @Nullable ChannelBuffer body,
+                @Nullable ChannelBuffer frame) {
             this.header = header;
             this.body = body;
+            this.frame = frame;
         }
 
         public Header getHeader() {
@@ -248,6 +260,14 @@ public final class BinaryProtocol {
             return body;
         }
 
+        /**
+         * @return the received frame, which shares the bytes with the body, or null
+         */
+        @Nullable
+        public ChannelBuffer getFrame() {
+            return frame;
+        }
+
     }
 
     public static final class Header {
@@ -275,6 +295,19 @@ public final class BinaryProtocol {
             this.opcode = opcode;
         }
 
+        @Nonnull
+        public Header copy() {
+            Header h = new Header(magic, opcode);
+            h.keyLength = keyLength;
+            h.extraLength = extraLength;
+            h.dataType = dataType;
+            h.status = status;
+            h.totalBody = totalBody;
+            h.opaque = opaque;
+            h.cas = cas;
+            return h;
+        }
+
         public byte getMagic() {
             return magic;
         }
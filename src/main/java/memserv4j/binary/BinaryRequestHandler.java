@@ -19,22 +19,28 @@ import static memserv4j.binary.BinaryProtocol.OPCODE_GET;
 import static memserv4j.binary.BinaryProtocol.OPCODE_GETK;
 import static memserv4j.binary.BinaryProtocol.OPCODE_GETKQ;
 import static memserv4j.binary.BinaryProtocol.OPCODE_GETQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_NOOP;
 import static memserv4j.binary.BinaryProtocol.OPCODE_QUIT;
 import static memserv4j.binary.BinaryProtocol.OPCODE_QUITQ;
 import static memserv4j.binary.BinaryProtocol.OPCODE_SET;
 import static memserv4j.binary.BinaryProtocol.OPCODE_SETQ;
 
+import memserv4j.AsyncCommandHandlerAdapter;
+import memserv4j.AsyncMemcachedCommandHandler;
 import memserv4j.MemcachedCommandHandler;
 import memserv4j.binary.BinaryProtocol.Header;
 import memserv4j.binary.BinaryProtocol.Packet;
 import memserv4j.binary.BinaryProtocol.ResponseStatus;
+import memserv4j.binary.ResponseSequencer.Slot;
 import memserv4j.util.MemcachedUtils;
 import memserv4j.util.StringUtils;
 import memserv4j.util.lang.ExceptionUtils;
 import memserv4j.util.netty.VerboseListener;
 
 import java.util.Arrays;
+import java.util.function.BiConsumer;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.commons.logging.Log;
@@ -42,7 +48,6 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -51,13 +56,22 @@ import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 
+/**
+ * Handles requests by an {@link AsyncMemcachedCommandHandler}. Responses are written when the
+ * command completes, in the order of the requests on each connection.
+ */
 public final class BinaryRequestHandler extends SimpleChannelHandler {
     private static final Log LOG = LogFactory.getLog(BinaryRequestHandler.class);
 
     private final ChannelGroup acceptedChannels;
-    private final MemcachedCommandHandler cmdHandler;
+    private final AsyncMemcachedCommandHandler cmdHandler;
 
     public BinaryRequestHandler(ChannelGroup acceptedChannels, MemcachedCommandHandler cmdHandler) {
+        this(acceptedChannels, new AsyncCommandHandlerAdapter(cmdHandler));
+    }
+
+    public BinaryRequestHandler(ChannelGroup acceptedChannels,
+            AsyncMemcachedCommandHandler cmdHandler) {
         super();
         this.acceptedChannels = acceptedChannels;
         this.cmdHandler = cmdHandler;
@@ -65,7 +79,9 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
 
     @Override
     public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        acceptedChannels.add(e.getChannel());
+        Channel channel = e.getChannel();
+        ctx.setAttachment(new ResponseSequencer(channel));
+        acceptedChannels.add(channel);
     }
 
     @Override
@@ -83,31 +99,38 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
             LOG.debug("recieved memcached message: \n" + header);
         }
 
+        final ResponseSequencer sequencer = (ResponseSequencer) ctx.getAttachment();
         final byte opcode = request.header.opcode;
         switch (opcode) {
             case OPCODE_GET:
             case OPCODE_GETQ:
             case OPCODE_GETK:
             case OPCODE_GETKQ: {
-                handleGet(opcode, request, header, ctx, e);
+                handleGet(opcode, request, header, sequencer.next());
                 break;
             }
             case OPCODE_SET:
             case OPCODE_SETQ: {
-                handleSet(opcode, request, header, ctx, e);
+                handleSet(opcode, request, header, sequencer.next());
+                break;
+            }
+            case OPCODE_NOOP: {
+                // answered after all of the preceding (quiet) responses
+                sequencer.next().complete(encodeResponse(opcode, header, null, null));
                 break;
             }
             case OPCODE_QUITQ: {
-                closeOnFlush(e.getChannel());
+                sequencer.next().completeAndClose(null, null);
                 break;
             }
             default: {
                 LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
-                if (!BinaryProtocol.noreply(opcode)) {
-                    ChannelFuture f = sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, e);
-                    if (opcode == OPCODE_QUIT) {
-                        f.addListener(ChannelFutureListener.CLOSE);
-                    }
+                if (opcode == OPCODE_QUIT) {
+                    Slot slot = sequencer.next();
+                    slot.completeAndClose(encodeError(ResponseStatus.NOT_SUPPORTED, header),
+                        errorListener(opcode, ResponseStatus.NOT_SUPPORTED));
+                } else if (!BinaryProtocol.noreply(opcode)) {
+                    sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, sequencer.next());
                 }
             }
         }
@@ -118,16 +141,31 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
      * have extras. MAY have key. MAY have value.
      */
     private void handleGet(final byte opcode, final Packet request, final Header resHeader,
-            final ChannelHandlerContext ctx, final MessageEvent e) {
+            final Slot slot) {
         final byte[] key = new byte[request.header.keyLength];
         request.body.readBytes(key);
-        byte[] storedValue = cmdHandler.handleGet(key);
-        if (storedValue == null) {
-            if (opcode == OPCODE_GETQ || opcode == OPCODE_GETKQ) {
-                return;
+        cmdHandler.handleGet(key).whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] storedValue, Throwable error) {
+                if (error != null) {
+                    LOG.error("Failed to get key: " + StringUtils.toByteString(key),
+                        ExceptionUtils.getRootCause(error));
+                    sendError(opcode, ResponseStatus.INTERNAL_ERROR, resHeader, slot);
+                    return;
+                }
+                if (storedValue == null) {
+                    if (opcode == OPCODE_GETQ || opcode == OPCODE_GETKQ) {
+                        slot.complete(null);
+                        return;
+                    }
+                }
+                sendGetResponse(opcode, resHeader, key, storedValue, slot);
             }
-        }
+        });
+    }
 
+    private static void sendGetResponse(final byte opcode, final Header resHeader,
+            final byte[] key, @Nullable final byte[] storedValue, final Slot slot) {
         final int flags = MemcachedUtils.getFlags(storedValue);
         final byte[] value = MemcachedUtils.getValue(storedValue);
 
@@ -151,7 +189,7 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
         } else {
             body.writeBytes(value);
         }
-        sendResponse(opcode, resHeader, body, e, StringUtils.toByteString(key));
+        sendResponse(opcode, resHeader, body, slot, StringUtils.toByteString(key));
     }
 
     /**
@@ -159,11 +197,11 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
      * value.
      */
     private void handleSet(final byte opcode, final Packet request, final Header resHeader,
-            final ChannelHandlerContext ctx, final MessageEvent e) {
+            final Slot slot) {
         // request body (flags, expiration, key, value)
         int flags = request.body.readInt();
         int expiry = request.body.readInt();
-        byte[] key = new byte[request.header.keyLength];
+        final byte[] key = new byte[request.header.keyLength];
         request.body.readBytes(key);
         int valueLength =
                 request.header.totalBody - request.header.extraLength - request.header.keyLength;
@@ -172,45 +210,73 @@ public final class BinaryRequestHandler extends SimpleChannelHandler {
         int valueOffset = storedValue.length - valueLength;
         request.body.readBytes(storedValue, valueOffset, valueLength);
 
-        cmdHandler.handleSet(key, storedValue, flags, expiry);
-        if (opcode == OPCODE_SETQ) {
-            return;
-        }
-        sendResponse(opcode, resHeader, null, e, StringUtils.toByteString(key));
+        cmdHandler.handleSet(key, storedValue, flags, expiry)
+                  .whenComplete(new BiConsumer<Short, Throwable>() {
+                      @Override
+                      public void accept(Short status, Throwable error) {
+                          if (error != null) {
+                              LOG.error("Failed to set key: " + StringUtils.toByteString(key),
+                                  ExceptionUtils.getRootCause(error));
+                              sendError(opcode, ResponseStatus.INTERNAL_ERROR, resHeader, slot);
+                              return;
+                          }
+                          if (status != null && status.shortValue() != 0) {
+                              resHeader.status(status.shortValue());
+                          } else if (opcode == OPCODE_SETQ) {
+                              slot.complete(null);
+                              return;
+                          }
+                          sendResponse(opcode, resHeader, null, slot,
+                              StringUtils.toByteString(key));
+                      }
+                  });
     }
 
-    private ChannelFuture sendError(final byte opcode, final ResponseStatus errcode,
-            final Header reqHeader, final MessageEvent e) {
-        assert (BinaryProtocol.noreply(opcode) == false) : BinaryProtocol.resolveName(opcode);
+    private static void sendError(final byte opcode, final ResponseStatus errcode,
+            final Header reqHeader, final Slot slot) {
+        assert (BinaryProtocol.noreply(opcode) == false
+                || errcode == ResponseStatus.INTERNAL_ERROR) : BinaryProtocol.resolveName(opcode);
+        slot.complete(encodeError(errcode, reqHeader), errorListener(opcode, errcode));
+    }
 
+    @Nonnull
+    private static ChannelBuffer encodeError(final ResponseStatus errcode, final Header reqHeader) {
         Header newHeader = new Header(reqHeader);
         newHeader.status(errcode.status);
         ChannelBuffer responseHeader = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
-        reqHeader.encode(responseHeader);
+        newHeader.encode(responseHeader);
+        return responseHeader;
+    }
 
-        Channel dst = e.getChannel();
-        ChannelFuture f = dst.write(responseHeader);
-        f.addListener(new VerboseListener(
-            "sendError [" + BinaryProtocol.resolveName(opcode) + "]: " + errcode));
-        return f;
+    @Nonnull
+    private static ChannelFutureListener errorListener(final byte opcode,
+            final ResponseStatus errcode) {
+        return new VerboseListener(
+            "sendError [" + BinaryProtocol.resolveName(opcode) + "]: " + errcode);
     }
 
-    private void sendResponse(final byte opcode, final Header header,
-            @Nullable final ChannelBuffer body, final MessageEvent e, final String key) {
+    private static void sendResponse(final byte opcode, final Header header,
+            @Nullable final ChannelBuffer body, final Slot slot, final String key) {
+        ChannelBuffer res = encodeResponse(opcode, header, body, key);
+        String opname = BinaryProtocol.resolveName(opcode);
+        slot.complete(res, new VerboseListener("sendResponse [" + opname + "] for key: " + key));
+    }
+
+    @Nonnull
+    private static ChannelBuffer encodeResponse(final byte opcode, final Header header,
+            @Nullable final ChannelBuffer body, @Nullable final String key) {
         ChannelBuffer res = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
         header.encode(res);
         if (body != null) {
             res = ChannelBuffers.wrappedBuffer(res, body);
         }
-        String opname = BinaryProtocol.resolveName(opcode);
         if (LOG.isDebugEnabled()) {
+            String opname = BinaryProtocol.resolveName(opcode);
             LOG.debug("Start sending memcached response [" + opname + "] " + res.readableBytes()
                     + " bytes for key '" + key + "'\n" + header + '\n'
                     + Arrays.toString(res.toByteBuffer().array()));
         }
-        Channel dst = e.getChannel();
-        dst.write(res)
-           .addListener(new VerboseListener("sendResponse [" + opname + "] for key: " + key));
+        return res;
     }
 
     private static void closeOnFlush(final Channel ch) {
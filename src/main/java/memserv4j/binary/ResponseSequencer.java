@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.binary;
+
+import java.util.ArrayDeque;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+/**
+ * Keeps responses of a pipelined connection in request order even when they are completed out
+ * of order. A slot is reserved per request in the I/O thread, and a completed response is
+ * written as soon as every slot ahead of it is completed.
+ * <p>
+ * Quiet commands complete their slot with no response so that a trailing NOOP is answered only
+ * after all of the preceding responses were written.
+ */
+public final class ResponseSequencer {
+
+    @Nonnull
+    private final Channel channel;
+    @Nonnull
+    private final ArrayDeque<Slot> slots;
+
+    private boolean closed = false;
+
+    public ResponseSequencer(@Nonnull Channel channel) {
+        this.channel = channel;
+        this.slots = new ArrayDeque<Slot>();
+    }
+
+    @Nonnull
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reserves the slot for the next response. MUST be called in the request order.
+     */
+    @Nonnull
+    public Slot next() {
+        final Slot slot = new Slot();
+        synchronized (this) {
+            slots.addLast(slot);
+        }
+        return slot;
+    }
+
+    public synchronized int pending() {
+        return slots.size();
+    }
+
+    private void drain() {
+        assert (Thread.holdsLock(this));
+        Slot head;
+        while ((head = slots.peekFirst()) != null && head.done) {
+            slots.pollFirst();
+            if (closed) {
+                continue; // discard responses after QUIT
+            }
+            write(head);
+        }
+    }
+
+    private void write(@Nonnull final Slot slot) {
+        if (slot.close) {
+            this.closed = true;
+            if (channel.isConnected()) {
+                ChannelFuture f = channel.write(
+                    slot.response == null ? ChannelBuffers.EMPTY_BUFFER : slot.response);
+                if (slot.listener != null) {
+                    f.addListener(slot.listener);
+                }
+                f.addListener(ChannelFutureListener.CLOSE);
+            }
+        } else if (slot.response != null) {
+            ChannelFuture f = channel.write(slot.response);
+            if (slot.listener != null) {
+                f.addListener(slot.listener);
+            }
+        }
+    }
+
+    public final class Slot {
+
+        @Nullable
+        private Object response;
+        @Nullable
+        private ChannelFutureListener listener;
+        private boolean close = false;
+        private boolean done = false;
+
+        private Slot() {}
+
+        /**
+         * @param response response to write, or null to write nothing (e.g., quiet commands)
+         */
+        public void complete(@Nullable Object response) {
+            complete(response, null, false);
+        }
+
+        public void complete(@Nullable Object response, @Nullable ChannelFutureListener listener) {
+            complete(response, listener, false);
+        }
+
+        /**
+         * Writes the response, if any, and then closes the connection.
+         */
+        public void completeAndClose(@Nullable Object response,
+                @Nullable ChannelFutureListener listener) {
+            complete(response, listener, true);
+        }
+
+        private void complete(@Nullable Object response, @Nullable ChannelFutureListener listener,
+                boolean close) {
+            synchronized (ResponseSequencer.this) {
+                if (done) {
+                    throw new IllegalStateException("Slot is already completed");
+                }
+                this.response = response;
+                this.listener = listener;
+                this.close = close;
+                this.done = true;
+                drain();
+            }
+        }
+
+        public boolean isDone() {
+            synchronized (ResponseSequencer.this) {
+                return done;
+            }
+        }
+
+    }
+
+}
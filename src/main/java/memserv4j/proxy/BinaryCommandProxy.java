@@ -43,22 +43,43 @@ import static memserv4j.binary.BinaryProtocol.OPCODE_SETQ;
 import static memserv4j.binary.BinaryProtocol.OPCODE_STAT;
 import static memserv4j.binary.BinaryProtocol.OPCODE_VERSION;
 
+import memserv4j.AsyncMemcachedCommandHandler;
+import memserv4j.Settings;
 import memserv4j.binary.BinaryProtocol;
 import memserv4j.binary.BinaryProtocol.Header;
 import memserv4j.binary.BinaryProtocol.Packet;
 import memserv4j.binary.BinaryProtocol.ResponseStatus;
+import memserv4j.binary.ResponseSequencer;
+import memserv4j.binary.ResponseSequencer.Slot;
 import memserv4j.util.StringUtils;
-import memserv4j.util.concurrent.ConcurrentKeyedStackObjectPool;
 import memserv4j.util.lang.ExceptionUtils;
-import memserv4j.util.net.PoolableSocketChannelFactory;
+import memserv4j.util.lang.Primitives;
+import memserv4j.util.netty.NettyUtils;
 import memserv4j.util.netty.VerboseListener;
-import memserv4j.util.nio.NIOUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -68,7 +89,6 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -76,27 +96,229 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
-public abstract class BinaryCommandProxy extends SimpleChannelHandler {
+/**
+ * Forwards keyed commands to the upstream server chosen by {@link #getSocket(byte[])}. Upstream
+ * I/O never blocks the worker thread; responses are delivered asynchronously and written back to
+ * the client in the request order.
+ * <p>
+ * Quiet gets of a multi-get are gathered until the next non-quiet-get command (typically the
+ * terminating NOOP) or the end of the current read, and then sent by one write per server. The
+ * sub-batches thus proceed in parallel, and the NOOP is answered after all of them.
+ * <p>
+ * FLUSH and STAT are broadcasted to {@link #getSockets()}, and their responses are combined.
+ * <p>
+ * When a key is replicated by {@link #getReplicas(byte[])}, writes go to all of the replicas and
+ * reads go to the replica chosen by the {@link ReplicaBalancer}, hedged to another replica if a
+ * read is slower than the configured percentile of recent read latencies.
+ * <p>
+ * Servers ejected as unhealthy by the health checks are skipped, so that requests go to the
+ * remaining replicas or fail fast by TEMP_FAILURE.
+ * <p>
+ * A get of a key already outstanding to the same server is not forwarded again, but answered by
+ * the response of the outstanding one, unless <code>memserv4j.gateway.collapse</code> is false.
+ * <p>
+ * While a key migrates after a membership change, i.e., {@link #getPreviousReplicas(byte[])}
+ * returns its previous owners, a miss is answered by the previous owner and the value found there
+ * is copied to the current replicas.
+ * <p>
+ * When <code>memserv4j.gateway.mirror.servers</code> is configured, a sample of keyed requests
+ * is mirrored to those servers by {@link TrafficMirror}.
+ * <p>
+ * When <code>memserv4j.gateway.large.pool</code> names a pool configured by
+ * <code>memserv4j.gateway.pool.&lt;name&gt;.*</code>, values larger than
+ * <code>memserv4j.gateway.large.threshold</code> are stored in that pool by
+ * {@link LargeValueRouter}, so that they do not hold up small values.
+ * <p>
+ * Gets failed by I/O errors are retried on another replica or the failover servers of
+ * <code>memserv4j.gateway.failover.servers</code>, and deletes on their primary, within the budget
+ * of {@link RetryBudget}.
+ * <p>
+ * Gets and sets destined to a server in the same JVM are served by its handler directly once it is
+ * given by {@link #setLocalHandler(SocketAddress, AsyncMemcachedCommandHandler)}, unless a request
+ * of the same client to the server is outstanding over the network, which they would overtake.
+ */
+public abstract class BinaryCommandProxy extends SimpleChannelHandler implements Closeable {
     private static final Log LOG = LogFactory.getLog(BinaryCommandProxy.class);
 
+    /** offsets in a binary protocol header */
+    private static final int OPCODE_OFFSET = 1;
+    private static final int OPAQUE_OFFSET = 12;
+    /** the maximum number of quiet gets gathered before forwarding */
+    private static final int MAX_BATCHED_GETS = 256;
+    /** the near cache generation not to cache a response by */
+    private static final long NO_FILL = -1L;
+    /** counters summed up over servers in addition to <code>cmd_*</code> */
+    private static final Set<String> ADDITIVE_STATS = new HashSet<String>(Arrays.asList(
+        "curr_items", "total_items", "bytes", "curr_connections", "total_connections",
+        "rejected_connections", "connection_structures", "get_hits", "get_misses",
+        "get_expired", "get_flushed", "delete_hits", "delete_misses", "incr_hits", "incr_misses",
+        "decr_hits", "decr_misses", "cas_hits", "cas_misses", "cas_badval", "touch_hits",
+        "touch_misses", "auth_cmds", "auth_errors", "bytes_read", "bytes_written", "evictions",
+        "reclaimed", "expired_unfetched", "evicted_unfetched", "listen_disabled_num",
+        "conn_yields"));
+
     @Nonnull
     private final ChannelGroup acceptedChannels;
 
-    private final ConcurrentKeyedStackObjectPool<SocketAddress, SocketChannel> sockPool;
+    @Nonnull
+    private final UpstreamConnector connector;
+    /** null if disabled */
+    @Nullable
+    private final NearCache nearCache;
+    /** latencies of reads to decide hedging, or null if hedging is disabled */
+    @Nullable
+    private final LatencyTracker hedgeTracker;
+    private final long minHedgeDelayNanos;
+    /** chooses the replica to read from, or null to read from the primary */
+    @Nullable
+    private volatile ReplicaBalancer balancer;
+    /** outstanding gets to collapse identical ones, or null if disabled */
+    @Nullable
+    private final InflightGets inflightGets;
+    /** expiration time in seconds of a value copied from its previous owner, 0 not to copy */
+    private final int backfillExpiry;
+    /** null if mirroring is disabled */
+    @Nullable
+    private final TrafficMirror mirror;
+    /** serves requests for a server in the same JVM, or null */
+    @Nullable
+    private volatile LocalCommandDispatcher local;
+    /** the maximum number of retries of an idempotent request, 0 to disable */
+    private final int maxRetries;
+    @Nonnull
+    private final RetryBudget retryBudget;
+    /** the servers to retry a request on after the replicas, or null */
+    @Nullable
+    private final NodeLocator failover;
+    /** routes large values to their own servers, or null if disabled */
+    @Nullable
+    private final LargeValueRouter largeValues;
 
     public BinaryCommandProxy(@Nonnull ChannelGroup acceptedChannels) {
         super();
         this.acceptedChannels = acceptedChannels;
-        PoolableSocketChannelFactory<SocketChannel> factory =
-                new PoolableSocketChannelFactory<SocketChannel>(false, true);
-        this.sockPool = new ConcurrentKeyedStackObjectPool<SocketAddress, SocketChannel>(
-            "memcached-proxy-sockpool", factory);
+        this.connector = new UpstreamConnector();
+        this.nearCache = newNearCache();
+        float percentile =
+                Primitives.parseFloat(Settings.get("memserv4j.gateway.hedge.percentile"), 0f);
+        this.hedgeTracker = (percentile > 0f) ? new LatencyTracker(percentile) : null;
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+            Primitives.parseInt(Settings.get("memserv4j.gateway.hedge.min_delay"), 1));
+        this.balancer = newBalancer();
+        boolean collapse = Boolean.parseBoolean(Settings.get("memserv4j.gateway.collapse", "true"));
+        this.inflightGets = collapse ? new InflightGets() : null;
+        this.backfillExpiry =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.migration.backfill_ttl"), 0);
+        this.mirror = newMirror();
+        this.maxRetries = Primitives.parseInt(Settings.get("memserv4j.gateway.retry.max"), 1);
+        this.retryBudget = new RetryBudget(
+            Primitives.parseFloat(Settings.get("memserv4j.gateway.retry.budget.ratio"), 0.1f),
+            Primitives.parseInt(Settings.get("memserv4j.gateway.retry.budget.min_per_sec"), 10),
+            Primitives.parseInt(Settings.get("memserv4j.gateway.retry.budget.burst"), 100));
+        String failoverServers = Settings.get("memserv4j.gateway.failover.servers");
+        this.failover = (failoverServers == null) ? null
+                : new KetamaNodeLocator(KetamaNodeLocator.parseNodes(failoverServers));
+        this.largeValues = newLargeValueRouter();
+    }
+
+    /**
+     * Enabled when <code>memserv4j.gateway.large.pool</code> is configured.
+     */
+    @Nullable
+    private LargeValueRouter newLargeValueRouter() {
+        String name = Settings.get("memserv4j.gateway.large.pool");
+        if (name == null) {
+            return null;
+        }
+        ServerPool pool = ServerPool.load(name.trim());
+        for (SocketAddress server : pool.locator.getWeights().keySet()) {
+            connector.setTimeouts(server, pool.writeTimeoutMillis, pool.readTimeoutMillis);
+        }
+        int threshold =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.large.threshold"), 65536);
+        int directorySize =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.large.directory"), 65536);
+        boolean fallback =
+                Boolean.parseBoolean(Settings.get("memserv4j.gateway.large.fallback", "false"));
+        return new LargeValueRouter(pool, threshold, directorySize, fallback);
+    }
+
+    /**
+     * Enabled when <code>memserv4j.gateway.mirror.servers</code> is configured.
+     */
+    @Nullable
+    private static TrafficMirror newMirror() {
+        String servers = Settings.get("memserv4j.gateway.mirror.servers");
+        if (servers == null) {
+            return null;
+        }
+        NodeLocator locator = new KetamaNodeLocator(KetamaNodeLocator.parseNodes(servers));
+        float sampleRate =
+                Primitives.parseFloat(Settings.get("memserv4j.gateway.mirror.sample"), 0.01f);
+        int maxPending =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.mirror.max_pending"), 1024);
+        return new TrafficMirror(locator, sampleRate, maxPending);
+    }
+
+    /**
+     * <code>memserv4j.gateway.balancer</code> is either "p2c" (default) for
+     * {@link PowerOfTwoChoicesBalancer} or "primary" to read from the primary replica.
+     */
+    @Nullable
+    private static ReplicaBalancer newBalancer() {
+        String name = Settings.get("memserv4j.gateway.balancer", "p2c");
+        if ("p2c".equals(name)) {
+            return new PowerOfTwoChoicesBalancer();
+        } else if ("primary".equals(name)) {
+            return null;
+        }
+        throw new IllegalArgumentException("Unknown memserv4j.gateway.balancer: " + name);
+    }
+
+    /**
+     * @param balancer chooses the replica to read from, or null to read from the primary
+     */
+    public void setBalancer(@Nullable ReplicaBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    /**
+     * Serves gets and sets of keys stored in the given server by its handler directly when the
+     * server runs in the same JVM, saving a round trip over the network.
+     *
+     * @param localServer the address the server is known by in the routing
+     * @param handler the handler of the server, or null to send all requests over the network
+     */
+    public void setLocalHandler(@Nonnull SocketAddress localServer,
+            @Nullable AsyncMemcachedCommandHandler handler) {
+        this.local = (handler == null) ? null : new LocalCommandDispatcher(localServer, handler);
+    }
+
+    /**
+     * Enabled when <code>memserv4j.gateway.nearcache.entries</code> is positive.
+     */
+    @Nullable
+    private static NearCache newNearCache() {
+        int entries = Primitives.parseInt(Settings.get("memserv4j.gateway.nearcache.entries"), 0);
+        if (entries <= 0) {
+            return null;
+        }
+        int ttl = Primitives.parseInt(Settings.get("memserv4j.gateway.nearcache.ttl"), 1000);
+        int maxValueSize =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.nearcache.max_value_size"),
+                    16 * 1024);
+        int admission =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.nearcache.admission"), 2);
+        return new NearCache(entries, ttl, maxValueSize, admission);
     }
 
     @Override
     public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         acceptedChannels.add(e.getChannel());
+        ctx.setAttachment(new ClientSession(e.getChannel()));
     }
 
     @Override
@@ -114,7 +336,13 @@ public abstract class BinaryCommandProxy extends SimpleChannelHandler {
             LOG.debug("recieved memcached message: \n" + header);
         }
 
+        final ClientSession session = (ClientSession) ctx.getAttachment();
+        final ResponseSequencer sequencer = session.sequencer;
         final byte opcode = header.getOpcode();
+        if (opcode != OPCODE_GETQ && opcode != OPCODE_GETKQ) {
+            // preceding gets go upstream first
+            flushGets(session);
+        }
         switch (opcode) {
             // those who MUST have key
             case OPCODE_GET:
@@ -122,16 +350,7 @@ public abstract class BinaryCommandProxy extends SimpleChannelHandler {
             case OPCODE_GETQ:
             case OPCODE_GETKQ:
             case OPCODE_SET:
-            case OPCODE_SETQ: {
-                final byte[] key = getKey(header, request.getBody());
-                if (key == null) {
-                    LOG.error("Illegal key length was provided");
-                    sendError(opcode, ResponseStatus.INVALID_ARGUMENTS, header, e);
-                } else {
-                    xferMemcacheCmd(opcode, header, request.getBody(), key, e);
-                }
-                break;
-            }
+            case OPCODE_SETQ:
             case OPCODE_ADD:
             case OPCODE_REPLACE:
             case OPCODE_DELETE:
@@ -146,37 +365,62 @@ public abstract class BinaryCommandProxy extends SimpleChannelHandler {
             case OPCODE_DECREMENTQ:
             case OPCODE_APPENDQ:
             case OPCODE_PREPENDQ: {
-                LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
-                sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, e);
+                final Slot slot = sequencer.next();
+                final byte[] key = getKey(header, request.getBody());
+                if (key != null && mirror != null && mirror.isSampled(key)) {
+                    mirror.send(key, encodeCommand(opcode, header, request.getBody()),
+                        session.affinity);
+                }
+                if (key == null) {
+                    LOG.error("Illegal key length was provided");
+                    sendError(opcode, ResponseStatus.INVALID_ARGUMENTS, header, slot);
+                } else if (nearCache != null && isGet(opcode)
+                        && serveFromNearCache(opcode, header, key, slot)) {
+                    // served by the near cache
+                } else if (opcode == OPCODE_GETQ || opcode == OPCODE_GETKQ) {
+                    batchGet(opcode, header, request, key, slot, session);
+                } else {
+                    if (nearCache != null && !isGet(opcode)) {
+                        nearCache.invalidate(key);
+                    }
+                    xferMemcacheCmd(opcode, header, request, key, slot, session);
+                }
                 break;
             }
-            // need to broadcast
+            // answered after all of the preceding responses, which needs no broadcast
             case OPCODE_NOOP: {
-                flush(e.getChannel());
+                Header resHeader = new Header(header);
+                ChannelBuffer res = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+                resHeader.encode(res);
+                sequencer.next().complete(res);
                 break;
             }
+            // need to broadcast
             case OPCODE_FLUSH:
-            case OPCODE_STAT:
             case OPCODE_FLUSHQ: {
-                LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
-                sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, e);
+                broadcastFlush(opcode, header, request.getBody(), sequencer.next(), session);
+                break;
+            }
+            case OPCODE_STAT: {
+                broadcastStat(header, request.getBody(), sequencer.next(), session);
                 break;
             }
             // no need to hand over
             case OPCODE_QUITQ: {
-                closeOnFlush(e.getChannel());
+                sequencer.next().completeAndClose(null, null);
                 break;
             }
             case OPCODE_QUIT: {
                 LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
-                ChannelFuture f = sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, e);
-                f.addListener(ChannelFutureListener.CLOSE);
+                sequencer.next().completeAndClose(
+                    encodeError(ResponseStatus.NOT_SUPPORTED, header),
+                    errorListener(opcode, ResponseStatus.NOT_SUPPORTED));
                 break;
             }
             case OPCODE_VERSION:
             default: {
                 LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
-                sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, e);
+                sendError(opcode, ResponseStatus.NOT_SUPPORTED, header, sequencer.next());
             }
         }
     }
@@ -204,87 +448,1108 @@ public abstract class BinaryCommandProxy extends SimpleChannelHandler {
         return key;
     }
 
-    private void xferMemcacheCmd(final byte opcode, final Header reqHeader,
-            final ChannelBuffer body, final byte[] key, final MessageEvent e) {
-        int bodylen = body.readableBytes();
-        final ByteBuffer cmd = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH + bodylen);
+    /**
+     * Quiet commands are forwarded as their non-quiet counterparts so that every upstream request
+     * is answered, and the responses the client did not ask for are dropped on the way back.
+     */
+    private void xferMemcacheCmd(final byte opcode, final Header reqHeader, final Packet request,
+            final byte[] key, final Slot slot, final ClientSession session) {
+        final SocketAddress[] replicas = route(opcode, reqHeader, key, slot, session.affinity);
+        if (replicas == null) {
+            return;
+        }
+        final SocketAddress primary = replicas[0];
+        final ChannelBuffer body = request.getBody();
+        if (!isGet(opcode)) {
+            if (inflightGets != null) {
+                inflightGets.invalidate(key, replicas);
+            }
+            evictPrevious(key, replicas, session.affinity);
+            final LocalCommandDispatcher l = local;
+            final CompletableFuture<Packet> result;
+            if (isServedLocally(l, primary, opcode, session)) {
+                result = l.send(opcode, reqHeader, body, key);
+            } else {
+                ChannelBuffer cmd = forwardCommand(opcode, request);
+                result = retry(track(primary, connector.send(primary, cmd, session.affinity)),
+                    replicas, opcode, reqHeader, body, key, session.affinity);
+                countToLocal(primary, result, session);
+            }
+            for (int i = 1; i < replicas.length; i++) {
+                replicate(replicas[i], opcode, reqHeader, body, session);
+            }
+            relayResponse(result, primary, opcode, reqHeader, key, slot, NO_FILL);
+            return;
+        }
+        final long generation = nearCacheGeneration(key);
+        if (getLocally(opcode, reqHeader, body, key, primary, slot, session, generation)) {
+            return;
+        }
+
+        InflightGets.Key inflightKey = null;
+        CompletableFuture<Packet> leader = null;
+        if (inflightGets != null) {
+            inflightKey = new InflightGets.Key(primary, opcode, key);
+            leader = new CompletableFuture<Packet>();
+            CompletableFuture<Packet> pending = inflightGets.join(inflightKey, leader);
+            if (pending != null) {
+                // the leader fills the near cache
+                relayResponse(pending, primary, opcode, reqHeader, key, slot, NO_FILL);
+                return;
+            }
+        }
+        final ChannelBuffer cmd = forwardCommand(opcode, request);
+        CompletableFuture<Packet> result =
+                track(primary, connector.send(primary, cmd, session.affinity));
+        result = hedge(result, replicas, opcode, reqHeader, body, session.affinity);
+        result = retry(result, replicas, opcode, reqHeader, body, key, session.affinity);
+        result = readPrevious(result, primary, opcode, reqHeader, body, key, session.affinity);
+        result = readLarge(result, primary, opcode, reqHeader, body, key, session.affinity);
+        countToLocal(primary, result, session);
+        if (inflightGets != null) {
+            inflightGets.complete(inflightKey, leader, result);
+        }
+        relayResponse(result, primary, opcode, reqHeader, key, slot, generation);
+    }
+
+    /**
+     * Serves a get by the handler of the local server, which is neither collapsed nor hedged.
+     *
+     * @return true if served locally
+     */
+    private boolean getLocally(final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final byte[] key, final SocketAddress sockAddr,
+            final Slot slot, final ClientSession session, final long generation) {
+        final LocalCommandDispatcher l = local;
+        if (!isServedLocally(l, sockAddr, opcode, session)) {
+            return false;
+        }
+        final int affinity = session.affinity;
+        CompletableFuture<Packet> result = l.send(opcode, reqHeader, body, key);
+        result = readPrevious(result, sockAddr, opcode, reqHeader, body, key, affinity);
+        result = readLarge(result, sockAddr, opcode, reqHeader, body, key, affinity);
+        relayResponse(result, sockAddr, opcode, reqHeader, key, slot, generation);
+        return true;
+    }
+
+    /**
+     * A request served by the handler would overtake the requests of the client outstanding to the
+     * local server over the network, so the handler serves it only when there is none.
+     */
+    private static boolean isServedLocally(@Nullable final LocalCommandDispatcher l,
+            @Nonnull final SocketAddress sockAddr, final byte opcode,
+            @Nonnull final ClientSession session) {
+        return l != null && l.accepts(sockAddr, opcode) && session.remoteToLocal.get() == 0;
+    }
+
+    /**
+     * Counts a request of the client sent to the local server over the network until answered.
+     */
+    private void countToLocal(@Nonnull final SocketAddress sockAddr,
+            @Nonnull final CompletableFuture<?> result, @Nonnull final ClientSession session) {
+        final LocalCommandDispatcher l = local;
+        if (l == null || !l.getAddress().equals(sockAddr)) {
+            return;
+        }
+        session.remoteToLocal.incrementAndGet();
+        result.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object response, Throwable error) {
+                session.remoteToLocal.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Skips the replicas ejected as unhealthy, and fails the request fast if none is left.
+     *
+     * @return the replicas to send the request to, or null if the request was failed
+     */
+    @Nullable
+    private SocketAddress[] route(final byte opcode, final Header reqHeader, final byte[] key,
+            final Slot slot, final int affinity) {
+        final SocketAddress[] replicas =
+                connector.filterHealthy(locate(opcode, reqHeader, key, affinity), isGet(opcode));
+        if (replicas.length == 0) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No healthy server for key: " + StringUtils.toByteString(key));
+            }
+            sendError(opcode, ResponseStatus.TEMP_FAILURE, reqHeader, slot);
+            return null;
+        }
+        if (replicas.length == 1 || !isGet(opcode)) {
+            return replicas;
+        }
+        // a replica in the same JVM is the cheapest to read from
+        final LocalCommandDispatcher l = local;
+        if (l != null) {
+            for (int i = 0; i < replicas.length; i++) {
+                if (replicas[i].equals(l.getAddress())) {
+                    return moveToFront(replicas, i);
+                }
+            }
+        }
+        final ReplicaBalancer b = balancer;
+        if (b != null) {
+            return moveToFront(replicas, b.select(replicas));
+        }
+        return replicas;
+    }
+
+    /**
+     * Sends a large value, and a request for a key known to have a large value, to the large-value
+     * servers of the key. A key moving between the large-value servers and the regular ones is
+     * deleted from where it was, so that a stale value is not read from there.
+     *
+     * @return the servers to send the request to
+     */
+    @Nonnull
+    private SocketAddress[] locate(final byte opcode, final Header reqHeader, final byte[] key,
+            final int affinity) {
+        final LargeValueRouter large = largeValues;
+        if (large == null) {
+            return getReplicas(key);
+        }
+        if (large.isLargeStore(opcode, reqHeader)) {
+            if (!large.contains(key)) {
+                // a large value replaces the small one
+                large.add(key);
+                for (SocketAddress sockAddr : getReplicas(key)) {
+                    deleteLater(sockAddr, key, affinity);
+                }
+            }
+            return large.getReplicas(key);
+        }
+        if (large.contains(key)) {
+            if (!LargeValueRouter.isStore(opcode)) {
+                return large.getReplicas(key);
+            }
+            // a small value replaces the large one
+            large.remove(key);
+            for (SocketAddress sockAddr : large.getReplicas(key)) {
+                deleteLater(sockAddr, key, affinity);
+            }
+        } else if (large.isFallbackEnabled()
+                && (opcode == OPCODE_DELETE || opcode == OPCODE_DELETEQ)) {
+            // the directory may have forgotten the key
+            for (SocketAddress sockAddr : large.getReplicas(key)) {
+                deleteLater(sockAddr, key, affinity);
+            }
+        }
+        return getReplicas(key);
+    }
+
+    @Nonnull
+    private static SocketAddress[] moveToFront(@Nonnull final SocketAddress[] replicas,
+            final int idx) {
+        if (idx == 0) {
+            return replicas;
+        }
+        final SocketAddress[] reordered = replicas.clone();
+        System.arraycopy(replicas, 0, reordered, 1, idx);
+        reordered[0] = replicas[idx];
+        return reordered;
+    }
+
+    /**
+     * Feeds the in-flight count and the latency of a keyed request to the balancer.
+     */
+    @Nonnull
+    private CompletableFuture<Packet> track(@Nonnull final SocketAddress sockAddr,
+            @Nonnull final CompletableFuture<Packet> result) {
+        final ReplicaBalancer b = balancer;
+        if (b == null) {
+            return result;
+        }
+        final long start = System.nanoTime();
+        b.onSend(sockAddr);
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                b.onComplete(sockAddr, System.nanoTime() - start, error == null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends a write to a secondary replica. The response of the primary is the one answered.
+     */
+    private void replicate(final SocketAddress sockAddr, final byte opcode,
+            final Header reqHeader, final ChannelBuffer body, final ClientSession session) {
+        final ChannelBuffer cmd = encodeCommand(opcode, reqHeader, body);
+        final CompletableFuture<Packet> result = track(sockAddr, connector.send(sockAddr, cmd,
+            session.affinity));
+        countToLocal(sockAddr, result, session);
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                if (error != null) {
+                    LOG.warn("Failed to replicate " + BinaryProtocol.resolveName(opcode) + " to "
+                            + sockAddr, ExceptionUtils.getRootCause(error));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the read to the second replica as well if the first one does not answer within the
+     * hedge delay, i.e., the configured percentile of read latencies, and takes the first answer.
+     */
+    @Nonnull
+    private CompletableFuture<Packet> hedge(final CompletableFuture<Packet> primary,
+            final SocketAddress[] replicas, final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final int affinity) {
+        final LatencyTracker tracker = hedgeTracker;
+        if (tracker == null || replicas.length < 2) {
+            return primary;
+        }
+        recordLatency(primary, System.nanoTime(), tracker);
+        final long percentile = tracker.getPercentile();
+        if (percentile < 0L) {
+            return primary; // not enough samples yet
+        }
+
+        final CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final BiConsumer<Packet, Throwable> handler = new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                if (error == null) {
+                    result.complete(response);
+                } else if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(error);
+                }
+            }
+        };
+        primary.whenComplete(handler);
+        final Timeout timeout = connector.getTimer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (result.isDone()) {
+                    return;
+                }
+                pending.incrementAndGet();
+                ChannelBuffer cmd = encodeCommand(opcode, reqHeader, body);
+                CompletableFuture<Packet> hedged =
+                        track(replicas[1], connector.send(replicas[1], cmd, affinity));
+                recordLatency(hedged, System.nanoTime(), tracker);
+                hedged.whenComplete(handler);
+            }
+        }, Math.max(percentile, minHedgeDelayNanos), TimeUnit.NANOSECONDS);
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                timeout.cancel();
+            }
+        });
+        return result;
+    }
+
+    private static void recordLatency(final CompletableFuture<Packet> result, final long start,
+            final LatencyTracker tracker) {
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                if (error == null) {
+                    tracker.record(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Retries an idempotent request failed by an I/O error, e.g., a broken connection, within the
+     * retry budget. A get is retried on the other replicas first, and then on the failover server
+     * of the key if any; a delete is retried on the primary by a new connection.
+     * Timeouts are not retried, since a retry would double the latency.
+     */
+    @Nonnull
+    private CompletableFuture<Packet> retry(final CompletableFuture<Packet> result,
+            final SocketAddress[] replicas, final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final byte[] key, final int affinity) {
+        if (maxRetries <= 0 || !isIdempotent(opcode)) {
+            return result;
+        }
+        retryBudget.deposit();
+        return retry(result, 0, replicas, opcode, reqHeader, body, key, affinity);
+    }
+
+    @Nonnull
+    private CompletableFuture<Packet> retry(final CompletableFuture<Packet> result,
+            final int attempt, final SocketAddress[] replicas, final byte opcode,
+            final Header reqHeader, final ChannelBuffer body, final byte[] key,
+            final int affinity) {
+        return result.handle(
+            new BiFunction<Packet, Throwable, CompletableFuture<Packet>>() {
+                @Override
+                public CompletableFuture<Packet> apply(Packet response, Throwable error) {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    if (attempt >= maxRetries || !isIOFailure(error)
+                            || !retryBudget.tryWithdraw()) {
+                        CompletableFuture<Packet> failed = new CompletableFuture<Packet>();
+                        failed.completeExceptionally(error);
+                        return failed;
+                    }
+                    SocketAddress sockAddr =
+                            getRetryTarget(replicas, failover, opcode, key, attempt);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Retrying " + BinaryProtocol.resolveName(opcode) + " on "
+                                + sockAddr + ": " + ExceptionUtils.getRootCause(error));
+                    }
+                    ChannelBuffer cmd = encodeCommand(opcode, reqHeader, body);
+                    return retry(track(sockAddr, connector.send(sockAddr, cmd, affinity)),
+                        attempt + 1, replicas, opcode, reqHeader, body, key, affinity);
+                }
+            }).thenCompose(
+                new Function<CompletableFuture<Packet>, CompletionStage<Packet>>() {
+                    @Override
+                    public CompletionStage<Packet> apply(CompletableFuture<Packet> f) {
+                        return f;
+                    }
+                });
+    }
+
+    /**
+     * A get is retried on the other replicas, and then on the failover server of the key. Any
+     * other request is retried on the primary, since a delete sent to a server not owning the key
+     * would leave the value of the owner stale.
+     *
+     * @param failover the failover servers, or null
+     */
+    @Nonnull
+    static SocketAddress getRetryTarget(@Nonnull final SocketAddress[] replicas,
+            @Nullable final NodeLocator failover, final byte opcode, @Nonnull final byte[] key,
+            final int attempt) {
+        if (!isGet(opcode)) {
+            return replicas[0];
+        }
+        if (attempt + 1 < replicas.length) {
+            return replicas[attempt + 1];
+        }
+        if (failover != null && attempt + 1 == replicas.length) {
+            return failover.getNode(key);
+        }
+        return replicas[0];
+    }
+
+    private static boolean isIdempotent(final byte opcode) {
+        return isGet(opcode) || opcode == OPCODE_DELETE || opcode == OPCODE_DELETEQ;
+    }
+
+    private static boolean isIOFailure(@Nullable Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof IOException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * While the key is migrating, answers a miss by the previous owner of the key, and copies a
+     * value found there to the current replicas in the background if a backfill TTL is set. The
+     * copy is sent by ADD so that a value written meanwhile is not overwritten.
+     *
+     * @param sockAddr the server the read went to
+     */
+    @Nonnull
+    private CompletableFuture<Packet> readPrevious(final CompletableFuture<Packet> result,
+            final SocketAddress sockAddr, final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final byte[] key, final int affinity) {
+        final SocketAddress[] previous = getPreviousReplicas(key);
+        if (previous == null || previous[0].equals(sockAddr)) {
+            return result;
+        }
+        return readOnMiss(result, previous[0], opcode, reqHeader, body, affinity,
+            new Consumer<Packet>() {
+                @Override
+                public void accept(Packet found) {
+                    if (backfillExpiry > 0) {
+                        backfill(key, found, affinity);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Answers a miss of a key not known to have a large value by the large-value server of the
+     * key, if fallback is enabled, since the key directory may have forgotten the key.
+     *
+     * @param sockAddr the server the read went to
+     */
+    @Nonnull
+    private CompletableFuture<Packet> readLarge(final CompletableFuture<Packet> result,
+            final SocketAddress sockAddr, final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final byte[] key, final int affinity) {
+        final LargeValueRouter large = largeValues;
+        if (large == null || !large.isFallbackEnabled()) {
+            return result;
+        }
+        final SocketAddress server = large.getServer(key);
+        if (server.equals(sockAddr)) {
+            return result;
+        }
+        return readOnMiss(result, server, opcode, reqHeader, body, affinity,
+            new Consumer<Packet>() {
+                @Override
+                public void accept(Packet found) {
+                    large.add(key);
+                }
+            });
+    }
+
+    /**
+     * Sends the read to the given server as well if the result is a miss.
+     *
+     * @param onFound called when the value is found on the server
+     * @return a future completed by the response of the server if found, or else by the result
+     */
+    @Nonnull
+    private CompletableFuture<Packet> readOnMiss(final CompletableFuture<Packet> result,
+            final SocketAddress server, final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final int affinity, final Consumer<Packet> onFound) {
+        return result.thenCompose(new Function<Packet, CompletionStage<Packet>>() {
+            @Override
+            public CompletionStage<Packet> apply(final Packet response) {
+                if (response.getHeader().getStatus() != ResponseStatus.KEY_NOT_FOUND.status) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                ChannelBuffer cmd = encodeCommand(opcode, reqHeader, body);
+                return connector.send(server, cmd, affinity).handle(
+                    new BiFunction<Packet, Throwable, Packet>() {
+                        @Override
+                        public Packet apply(Packet found, Throwable error) {
+                            if (error != null) {
+                                if (LOG.isDebugEnabled()) {
+                                    LOG.debug("Failed to read " + server,
+                                        ExceptionUtils.getRootCause(error));
+                                }
+                                return response;
+                            }
+                            if (found.getHeader().getStatus() != 0) {
+                                return response;
+                            }
+                            onFound.accept(found);
+                            return found;
+                        }
+                    });
+            }
+        });
+    }
+
+    /**
+     * Copies a value read from the previous owner of the key to its current replicas. A server not
+     * supporting ADD is sent SET instead. A GET response does not carry the expiration time of the
+     * value, so the copy expires after the backfill TTL rather than when the source does.
+     */
+    private void backfill(final byte[] key, final Packet found, final int affinity) {
+        final Header header = found.getHeader();
+        final ChannelBuffer body = found.getBody();
+        final int extraLength = header.getExtraLength();
+        final int valueOffset = body.readerIndex() + extraLength + header.getKeyLength();
+        final int valueLength = header.getTotalBody() - extraLength - header.getKeyLength();
+        final int flags = (extraLength >= 4) ? body.getInt(body.readerIndex()) : 0;
+        final ChannelBuffer value = body.slice(valueOffset, valueLength);
+
+        for (final SocketAddress sockAddr : getReplicas(key)) {
+            ChannelBuffer cmd = encodeStore(OPCODE_ADD, key, flags, value);
+            connector.send(sockAddr, cmd, affinity)
+                     .whenComplete(new BiConsumer<Packet, Throwable>() {
+                         @Override
+                         public void accept(Packet response, Throwable error) {
+                             if (error != null) {
+                                 LOG.warn("Failed to backfill a key to " + sockAddr,
+                                     ExceptionUtils.getRootCause(error));
+                                 return;
+                             }
+                             short status = response.getHeader().getStatus();
+                             if (status == ResponseStatus.NOT_SUPPORTED.status
+                                     || status == ResponseStatus.UNKNOWN.status) {
+                                 connector.send(sockAddr,
+                                     encodeStore(OPCODE_SET, key, flags, value), affinity);
+                             }
+                         }
+                     });
+        }
+    }
+
+    @Nonnull
+    private ChannelBuffer encodeStore(final byte opcode, final byte[] key, final int flags,
+            final ChannelBuffer value) {
+        final Header reqHeader = new Header(BinaryProtocol.MAGIC_BYTE_REQUEST, opcode);
+        reqHeader.setBodyLength((byte) 8, key.length, value.readableBytes());
+        final ChannelBuffer cmd =
+                ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH + 8 + key.length);
+        reqHeader.encode(cmd);
+        cmd.writeInt(flags);
+        cmd.writeInt(backfillExpiry);
+        cmd.writeBytes(key);
+        return ChannelBuffers.wrappedBuffer(cmd, value.slice());
+    }
+
+    /**
+     * Deletes a mutated key from its previous owners, so that a stale value is not read from
+     * there afterwards.
+     */
+    private void evictPrevious(final byte[] key, final SocketAddress[] replicas,
+            final int affinity) {
+        final SocketAddress[] previous = getPreviousReplicas(key);
+        if (previous == null) {
+            return;
+        }
+        for (SocketAddress sockAddr : previous) {
+            if (!Arrays.asList(replicas).contains(sockAddr)) {
+                deleteLater(sockAddr, key, affinity);
+            }
+        }
+    }
+
+    /**
+     * Deletes the key from the server in the background. The response is ignored.
+     */
+    private void deleteLater(final SocketAddress sockAddr, final byte[] key, final int affinity) {
+        final Header reqHeader = new Header(BinaryProtocol.MAGIC_BYTE_REQUEST, OPCODE_DELETE);
+        reqHeader.setBodyLength((byte) 0, key.length, 0);
+        final ChannelBuffer cmd = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH + key.length);
         reqHeader.encode(cmd);
-        if (bodylen > 0) {
-            body.readBytes(cmd);
-        }
-        cmd.flip();
-
-        final SocketAddress sockAddr = getSocket(key);
-        final SocketChannel channel = sockPool.borrowObject(sockAddr);
-        try {
-            NIOUtils.writeFully(channel, cmd);
-            xferResponse(opcode, channel, e.getChannel(), StringUtils.toByteString(key));
-        } catch (IOException ioe) {
-            LOG.error(ioe);
-            sendError(reqHeader.getOpcode(), ResponseStatus.INTERNAL_ERROR, reqHeader, e);
-        } finally {
-            sockPool.returnObject(sockAddr, channel);
-        }
-    }
-
-    private static void xferResponse(final byte opcode, final SocketChannel src, final Channel dst,
-            final String key) throws IOException {
-        ByteBuffer headerBuf = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH);
-        int headerRead = NIOUtils.readFully(src, headerBuf, BinaryProtocol.HEADER_LENGTH);
-        assert (headerRead == BinaryProtocol.HEADER_LENGTH) : headerRead;
-        headerBuf.flip();
-
-        if (BinaryProtocol.surpressSuccessResponse(opcode)) {
-            // piggyback will never happens 
-            final short status = headerBuf.getShort(6);
-            if (status == 0) {
+        cmd.writeBytes(key);
+        connector.send(sockAddr, cmd, affinity);
+    }
+
+    private void batchGet(final byte opcode, final Header reqHeader, final Packet request,
+            final byte[] key, final Slot slot, final ClientSession session) {
+        final SocketAddress[] replicas = route(opcode, reqHeader, key, slot, session.affinity);
+        if (replicas == null) {
+            return;
+        }
+        final long generation = nearCacheGeneration(key);
+        if (getLocally(opcode, reqHeader, request.getBody(), key, replicas[0], slot, session,
+            generation)) {
+            return;
+        }
+        final ChannelBuffer cmd = forwardCommand(opcode, request);
+        session.gets.add(new BatchedGet(opcode, reqHeader, request.getBody(), key, slot, cmd,
+            replicas, generation));
+        if (session.gets.size() >= MAX_BATCHED_GETS) {
+            flushGets(session);
+        } else if (!session.flushScheduled) {
+            session.flushScheduled = true;
+            NettyUtils.executeLater(session.sequencer.getChannel(), new Runnable() {
+                @Override
+                public void run() {
+                    session.flushScheduled = false;
+                    flushGets(session);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the gathered gets by one write per server.
+     */
+    private void flushGets(final ClientSession session) {
+        final List<BatchedGet> gets = session.gets;
+        if (gets.isEmpty()) {
+            return;
+        }
+        final Map<SocketAddress, List<BatchedGet>> batches =
+                new LinkedHashMap<SocketAddress, List<BatchedGet>>();
+        for (BatchedGet get : gets) {
+            if (inflightGets != null) {
+                get.inflightKey = new InflightGets.Key(get.replicas[0], get.opcode, get.key);
+                get.leader = new CompletableFuture<Packet>();
+                CompletableFuture<Packet> pending = inflightGets.join(get.inflightKey, get.leader);
+                if (pending != null) {
+                    relayResponse(pending, get.replicas[0], get.opcode, get.reqHeader, get.key,
+                        get.slot, NO_FILL);
+                    continue;
+                }
+            }
+            List<BatchedGet> batch = batches.get(get.replicas[0]);
+            if (batch == null) {
+                batch = new ArrayList<BatchedGet>();
+                batches.put(get.replicas[0], batch);
+            }
+            batch.add(get);
+        }
+        gets.clear();
+
+        for (Map.Entry<SocketAddress, List<BatchedGet>> e : batches.entrySet()) {
+            final SocketAddress sockAddr = e.getKey();
+            final List<BatchedGet> batch = e.getValue();
+            final int size = batch.size();
+            final List<ChannelBuffer> cmds = new ArrayList<ChannelBuffer>(size);
+            for (int i = 0; i < size; i++) {
+                cmds.add(batch.get(i).cmd);
+            }
+            final List<CompletableFuture<Packet>> results =
+                    connector.send(sockAddr, cmds, session.affinity);
+            for (int i = 0; i < size; i++) {
+                BatchedGet get = batch.get(i);
+                CompletableFuture<Packet> result = hedge(track(sockAddr, results.get(i)),
+                    get.replicas, get.opcode, get.reqHeader, get.body, session.affinity);
+                result = retry(result, get.replicas, get.opcode, get.reqHeader, get.body,
+                    get.key, session.affinity);
+                result = readPrevious(result, sockAddr, get.opcode, get.reqHeader, get.body,
+                    get.key, session.affinity);
+                result = readLarge(result, sockAddr, get.opcode, get.reqHeader, get.body,
+                    get.key, session.affinity);
+                countToLocal(sockAddr, result, session);
+                if (get.leader != null) {
+                    inflightGets.complete(get.inflightKey, get.leader, result);
+                }
+                relayResponse(result, sockAddr, get.opcode, get.reqHeader, get.key, get.slot,
+                    get.generation);
+            }
+        }
+    }
+
+    /**
+     * Fans FLUSH out to all of the servers and answers the first error if any.
+     */
+    private void broadcastFlush(final byte opcode, final Header reqHeader,
+            final ChannelBuffer body, final Slot slot, final ClientSession session) {
+        final Collection<SocketAddress> servers = getBroadcastServers();
+        if (servers.isEmpty()) {
+            LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(opcode));
+            sendError(opcode, ResponseStatus.NOT_SUPPORTED, reqHeader, slot);
+            return;
+        }
+        if (nearCache != null) {
+            nearCache.clear();
+        }
+        if (inflightGets != null) {
+            inflightGets.clear();
+        }
+        final List<CompletableFuture<Packet>> results =
+                new ArrayList<CompletableFuture<Packet>>(servers.size());
+        for (SocketAddress sockAddr : servers) {
+            ChannelBuffer cmd = encodeCommand(opcode, reqHeader, body);
+            CompletableFuture<Packet> result = connector.send(sockAddr, cmd, session.affinity);
+            countToLocal(sockAddr, result, session);
+            results.add(result);
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+                         .whenComplete(new BiConsumer<Void, Throwable>() {
+                             @Override
+                             public void accept(Void v, Throwable error) {
+                                 short status = 0;
+                                 for (CompletableFuture<Packet> result : results) {
+                                     if (result.isCompletedExceptionally()) {
+                                         status = ResponseStatus.INTERNAL_ERROR.status;
+                                         break;
+                                     }
+                                     short s = result.join().getHeader().getStatus();
+                                     if (s != 0) {
+                                         status = s;
+                                         break;
+                                     }
+                                 }
+                                 if (status == 0 && BinaryProtocol.noreply(opcode)) {
+                                     slot.complete(null);
+                                     return;
+                                 }
+                                 Header resHeader = new Header(reqHeader).status(status);
+                                 ChannelBuffer res =
+                                         ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+                                 resHeader.encode(res);
+                                 slot.complete(res, new VerboseListener(
+                                     "sendResponse [" + BinaryProtocol.resolveName(opcode)
+                                             + "] status: " + status));
+                             }
+                         });
+    }
+
+    /**
+     * Fans STAT out to all of the servers and answers the statistics summed up over the servers
+     * that answered. Only the counters of {@link #isAdditive(String)} are summed up, and the
+     * others, e.g., settings, ports and versions, are taken from the first server.
+     */
+    private void broadcastStat(final Header reqHeader, final ChannelBuffer body, final Slot slot,
+            final ClientSession session) {
+        final Collection<SocketAddress> servers = getBroadcastServers();
+        if (servers.isEmpty()) {
+            LOG.warn("Unsupported opcode = " + BinaryProtocol.resolveName(OPCODE_STAT));
+            sendError(OPCODE_STAT, ResponseStatus.NOT_SUPPORTED, reqHeader, slot);
+            return;
+        }
+        final List<CompletableFuture<List<Packet>>> results =
+                new ArrayList<CompletableFuture<List<Packet>>>(servers.size());
+        for (SocketAddress sockAddr : servers) {
+            ChannelBuffer cmd = encodeCommand(OPCODE_STAT, reqHeader, body);
+            results.add(connector.sendForMultiResponses(sockAddr, cmd, session.affinity));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+                         .whenComplete(new BiConsumer<Void, Throwable>() {
+                             @Override
+                             public void accept(Void v, Throwable error) {
+                                 sendStats(reqHeader, results, slot);
+                             }
+                         });
+    }
+
+    private static boolean isAdditive(@Nonnull final String name) {
+        return name.startsWith("cmd_") || ADDITIVE_STATS.contains(name);
+    }
+
+    private static void sendStats(final Header reqHeader,
+            final List<CompletableFuture<List<Packet>>> results, final Slot slot) {
+        final Map<String, String> stats = new LinkedHashMap<String, String>();
+        int answered = 0;
+        for (CompletableFuture<List<Packet>> result : results) {
+            if (result.isCompletedExceptionally()) {
+                continue;
+            }
+            answered++;
+            for (Packet p : result.join()) {
+                final Header h = p.getHeader();
+                if (h.getStatus() != 0 || h.getKeyLength() == 0) {
+                    continue;
+                }
+                final ChannelBuffer b = p.getBody();
+                final int keyOffset = b.readerIndex() + h.getExtraLength();
+                final int valueLength = h.getTotalBody() - h.getExtraLength() - h.getKeyLength();
+                String name = b.toString(keyOffset, h.getKeyLength(), StandardCharsets.US_ASCII);
+                String value = b.toString(keyOffset + h.getKeyLength(), valueLength,
+                    StandardCharsets.US_ASCII);
+                String prev = stats.get(name);
+                if (prev == null) {
+                    stats.put(name, value);
+                } else if (isAdditive(name)) {
+                    try {
+                        stats.put(name, Long.toString(Long.parseLong(prev)
+                                + Long.parseLong(value)));
+                    } catch (NumberFormatException e) {
+                        ; // keep the first one
+                    }
+                }
+            }
+        }
+        if (answered == 0) {
+            sendError(OPCODE_STAT, ResponseStatus.INTERNAL_ERROR, reqHeader, slot);
+            return;
+        }
+
+        final ChannelBuffer res = ChannelBuffers.dynamicBuffer();
+        for (Map.Entry<String, String> e : stats.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.US_ASCII);
+            byte[] value = e.getValue().getBytes(StandardCharsets.US_ASCII);
+            new Header(reqHeader).keyLength((short) name.length)
+                                 .totalBody(name.length + value.length)
+                                 .encode(res);
+            res.writeBytes(name);
+            res.writeBytes(value);
+        }
+        new Header(reqHeader).encode(res); // terminator
+        slot.complete(res, new VerboseListener("sendResponse [STAT] " + stats.size() + " stats"));
+    }
+
+    /**
+     * Forwards the received frame as is, but for the opcode patched in place. The opaque is
+     * patched by the upstream connection as well. Use {@link #encodeCommand(byte, Header,
+     * ChannelBuffer)} instead to send the request more than once.
+     */
+    @Nonnull
+    private static ChannelBuffer forwardCommand(final byte opcode, final Packet request) {
+        final ChannelBuffer frame = request.getFrame();
+        if (frame == null) {
+            return encodeCommand(opcode, request.getHeader(), request.getBody());
+        }
+        frame.setByte(frame.readerIndex() + OPCODE_OFFSET, BinaryProtocol.asSyncOp(opcode));
+        return frame;
+    }
+
+    /**
+     * Encodes a request to forward by a new header followed by a slice of the body. The body is
+     * neither copied nor consumed so that it can be encoded again.
+     */
+    @Nonnull
+    private static ChannelBuffer encodeCommand(final byte opcode, final Header reqHeader,
+            final ChannelBuffer body) {
+        final ChannelBuffer header = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+        reqHeader.copy().opcode(BinaryProtocol.asSyncOp(opcode)).encode(header);
+        if (!body.readable()) {
+            return header;
+        }
+        return ChannelBuffers.wrappedBuffer(header, body.slice());
+    }
+
+    /**
+     * @param generation the near cache generation of the key taken before a get was sent, or
+     *        {@link #NO_FILL} not to cache the response
+     */
+    private void relayResponse(final CompletableFuture<Packet> result,
+            final SocketAddress sockAddr, final byte opcode, final Header reqHeader,
+            final byte[] key, final Slot slot, final long generation) {
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                if (error != null) {
+                    final Throwable cause = ExceptionUtils.getRootCause(error);
+                    if (cause instanceof TimeoutException) {
+                        LOG.warn(cause.getMessage());
+                        sendError(opcode, ResponseStatus.TEMP_FAILURE, reqHeader, slot);
+                    } else {
+                        LOG.error("Failed to forward a request to " + sockAddr, cause);
+                        sendError(opcode, ResponseStatus.INTERNAL_ERROR, reqHeader, slot);
+                    }
+                    return;
+                }
+                if (nearCache != null) {
+                    updateNearCache(opcode, key, response, generation);
+                }
+                xferResponse(opcode, reqHeader, response, slot, StringUtils.toByteString(key));
+            }
+        });
+    }
+
+    private static boolean isGet(final byte opcode) {
+        switch (opcode) {
+            case OPCODE_GET:
+            case OPCODE_GETK:
+            case OPCODE_GETQ:
+            case OPCODE_GETKQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private long nearCacheGeneration(final byte[] key) {
+        return (nearCache == null) ? NO_FILL : nearCache.generation(key);
+    }
+
+    private boolean serveFromNearCache(final byte opcode, final Header reqHeader,
+            final byte[] key, final Slot slot) {
+        assert (nearCache != null);
+        final NearCache.Entry entry = nearCache.get(key);
+        if (entry == null) {
+            return false;
+        }
+        final boolean withKey = (opcode == OPCODE_GETK || opcode == OPCODE_GETKQ);
+        final int keylen = withKey ? key.length : 0;
+        final Header resHeader = new Header(reqHeader).extraLength((byte) 4)
+                                                      .keyLength((short) keylen)
+                                                      .totalBody(4 + keylen + entry.value.length)
+                                                      .cas(entry.cas);
+        ChannelBuffer res = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH + 4 + keylen);
+        resHeader.encode(res);
+        res.writeInt(entry.flags);
+        if (withKey) {
+            res.writeBytes(key);
+        }
+        res = ChannelBuffers.wrappedBuffer(res, ChannelBuffers.wrappedBuffer(entry.value));
+        String opname = BinaryProtocol.resolveName(opcode);
+        slot.complete(res, new VerboseListener(
+            "sendResponse [" + opname + "] for key: " + StringUtils.toByteString(key)));
+        return true;
+    }
+
+    /**
+     * Caches a found value unless the key was written since the get was sent, or invalidates the
+     * key on a mutation so that gets sent while the mutation was in flight are not cached.
+     */
+    private void updateNearCache(final byte opcode, final byte[] key, final Packet response,
+            final long generation) {
+        assert (nearCache != null);
+        if (!isGet(opcode)) {
+            nearCache.invalidate(key);
+            return;
+        }
+        if (generation == NO_FILL) {
+            return;
+        }
+        final Header header = response.getHeader();
+        final ChannelBuffer body = response.getBody();
+        if (header.getStatus() != 0 || body == null) {
+            return;
+        }
+        final int extralen = header.getExtraLength();
+        final int offset = extralen + header.getKeyLength();
+        final int flags = (extralen >= 4) ? body.getInt(body.readerIndex()) : 0;
+        final byte[] value = new byte[header.getTotalBody() - offset];
+        body.getBytes(body.readerIndex() + offset, value);
+        nearCache.put(key, flags, value, header.getCas(), generation);
+    }
+
+    private static void xferResponse(final byte opcode, final Header reqHeader,
+            final Packet response, final Slot slot, final String key) {
+        final Header header = response.getHeader();
+        final short status = header.getStatus();
+        if (status == 0) {
+            if (BinaryProtocol.surpressSuccessResponse(opcode)) {
+                slot.complete(null);
+                return;
+            }
+        } else if (status == ResponseStatus.KEY_NOT_FOUND.status) {
+            if (opcode == OPCODE_GETQ || opcode == OPCODE_GETKQ) {
+                slot.complete(null);
                 return;
             }
         }
 
-        ChannelBuffer res;
-        int totalBody = headerBuf.getInt(8);
-        if (totalBody > 0) {
-            ByteBuffer bodyBuf = ByteBuffer.allocate(totalBody);
-            int bodyRead = NIOUtils.readFully(src, bodyBuf, totalBody);
-            assert (bodyRead == totalBody) : "bodyRead (" + bodyRead + ") != totalBody ("
-                    + totalBody + ")";
-            bodyBuf.flip();
-            res = ChannelBuffers.wrappedBuffer(headerBuf, bodyBuf);
+        // restore the opcode and the opaque of the client
+        final Header resHeader = header.copy().opcode(opcode).opaque(reqHeader.getOpaque());
+        ChannelBuffer res = response.getFrame();
+        if (res != null) {
+            // relay the received bytes as is
+            final int idx = res.readerIndex();
+            res.setByte(idx + OPCODE_OFFSET, opcode);
+            res.setInt(idx + OPAQUE_OFFSET, reqHeader.getOpaque());
         } else {
-            res = ChannelBuffers.wrappedBuffer(headerBuf);
+            res = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+            resHeader.encode(res);
+            ChannelBuffer body = response.getBody();
+            if (body != null && body.readable()) {
+                res = ChannelBuffers.wrappedBuffer(res, body);
+            }
         }
-        String opname = BinaryProtocol.resolveName(headerBuf.get(1));
+        String opname = BinaryProtocol.resolveName(opcode);
         if (LOG.isDebugEnabled()) {
-            Header header = new Header();
-            header.decode(headerBuf);
             LOG.debug("Start sending memcached response [" + opname + "] " + res.readableBytes()
-                    + " bytes for key '" + key + "'\n" + header + '\n'
-                    + Arrays.toString(res.toByteBuffer().array()));
+                    + " bytes for key '" + key + "'\n" + resHeader + '\n'
+                    + ChannelBuffers.hexDump(res));
         }
-        dst.write(res)
-           .addListener(new VerboseListener("sendResponse [" + opname + "] for key: " + key));
+        slot.complete(res, new VerboseListener("sendResponse [" + opname + "] for key: " + key));
     }
 
-    private static ChannelFuture sendError(final byte opcode, final ResponseStatus errcode,
-            final Header reqHeader, final MessageEvent e) {
+    private static void sendError(final byte opcode, final ResponseStatus errcode,
+            final Header reqHeader, final Slot slot) {
+        slot.complete(encodeError(errcode, reqHeader), errorListener(opcode, errcode));
+    }
+
+    @Nonnull
+    private static ChannelBuffer encodeError(final ResponseStatus errcode, final Header reqHeader) {
         Header newHeader = new Header(reqHeader);
         newHeader.status(errcode.status);
         ChannelBuffer responseHeader = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
-        reqHeader.encode(responseHeader);
-        Channel dst = e.getChannel();
-        String opname = BinaryProtocol.resolveName(opcode);
-        ChannelFuture f = dst.write(responseHeader);
-        f.addListener(new VerboseListener("sendError [" + opname + "]: " + errcode));
-        return f;
+        newHeader.encode(responseHeader);
+        return responseHeader;
+    }
+
+    @Nonnull
+    private static ChannelFutureListener errorListener(final byte opcode,
+            final ResponseStatus errcode) {
+        return new VerboseListener(
+            "sendError [" + BinaryProtocol.resolveName(opcode) + "]: " + errcode);
     }
 
     protected abstract SocketAddress getSocket(final byte[] key);
 
-    private static void flush(final Channel ch) {
-        if (ch.isConnected()) {
-            ch.write(ChannelBuffers.EMPTY_BUFFER);
+    /**
+     * @return the servers storing the key, the first of which is the primary. Writes are sent to
+     *         all of them and reads go to one of them.
+     */
+    @Nonnull
+    protected SocketAddress[] getReplicas(final byte[] key) {
+        return new SocketAddress[] {getSocket(key)};
+    }
+
+    /**
+     * @return {@link #getSockets()} and the large-value servers
+     */
+    @Nonnull
+    private Collection<SocketAddress> getBroadcastServers() {
+        final Collection<SocketAddress> servers = getSockets();
+        if (largeValues == null || servers.isEmpty()) {
+            return servers;
+        }
+        final Set<SocketAddress> all = new LinkedHashSet<SocketAddress>(servers);
+        all.addAll(largeValues.getServers());
+        return all;
+    }
+
+    /**
+     * @return the servers that stored the key before the last membership change, while misses
+     *         of the key are still to be answered from there, or null
+     */
+    @Nullable
+    protected SocketAddress[] getPreviousReplicas(final byte[] key) {
+        return null;
+    }
+
+    /**
+     * @return all of the servers to which FLUSH and STAT are broadcasted, or an empty collection
+     *         if broadcasting is not supported
+     */
+    @Nonnull
+    protected Collection<SocketAddress> getSockets() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Overrides <code>memserv4j.gateway.timeout.write</code> and <code>.read</code> for the
+     * server.
+     */
+    protected void setTimeouts(@Nonnull SocketAddress server, long writeTimeoutMillis,
+            long readTimeoutMillis) {
+        connector.setTimeouts(server, writeTimeoutMillis, readTimeoutMillis);
+    }
+
+    private static final class ClientSession {
+
+        @Nonnull
+        final ResponseSequencer sequencer;
+        /** requests of a client go through the same upstream connection */
+        final int affinity;
+        /** quiet gets to be forwarded, accessed only by the I/O thread of the client */
+        @Nonnull
+        final List<BatchedGet> gets;
+        boolean flushScheduled = false;
+        /** requests of the client to the local server outstanding over the network */
+        @Nonnull
+        final AtomicInteger remoteToLocal = new AtomicInteger(0);
+
+        ClientSession(@Nonnull Channel channel) {
+            this.sequencer = new ResponseSequencer(channel);
+            this.affinity = channel.getId().intValue();
+            this.gets = new ArrayList<BatchedGet>();
+        }
+
+    }
+
+    private static final class BatchedGet {
+
+        final byte opcode;
+        @Nonnull
+        final Header reqHeader;
+        @Nonnull
+        final ChannelBuffer body;
+        @Nonnull
+        final byte[] key;
+        @Nonnull
+        final Slot slot;
+        @Nonnull
+        final ChannelBuffer cmd;
+        @Nonnull
+        final SocketAddress[] replicas;
+        /** the near cache generation of the key when the get was received */
+        final long generation;
+        /** set when the get is registered as outstanding */
+        @Nullable
+        InflightGets.Key inflightKey;
+        @Nullable
+        CompletableFuture<Packet> leader;
+
+        BatchedGet(byte opcode, @Nonnull Header reqHeader, @Nonnull ChannelBuffer body,
+                @Nonnull byte[] key, @Nonnull Slot slot, @Nonnull ChannelBuffer cmd,
+                @Nonnull SocketAddress[] replicas, long generation) {
+            this.opcode = opcode;
+            this.reqHeader = reqHeader;
+            this.body = body;
+            this.key = key;
+            this.slot = slot;
+            this.cmd = cmd;
+            this.replicas = replicas;
+            this.generation = generation;
         }
+
     }
 
     private static void closeOnFlush(final Channel ch) {
@@ -293,4 +1558,15 @@ public abstract class BinaryCommandProxy extends SimpleChannelHandler {
         }
     }
 
+    /**
+     * Closes the upstream connections.
+     */
+    @Override
+    public void close() throws IOException {
+        connector.close();
+        if (mirror != null) {
+            mirror.close();
+        }
+    }
+
 }
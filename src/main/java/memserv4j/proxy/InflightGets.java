@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static memserv4j.binary.BinaryProtocol.OPCODE_GET;
+import static memserv4j.binary.BinaryProtocol.OPCODE_GETK;
+
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.util.lang.HashUtils;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Gets forwarded to the servers and not yet answered, so that a get of a key already outstanding
+ * to the same server attaches to the pending one instead of being forwarded again.
+ * <p>
+ * A mutation of a key detaches its pending gets by {@link #invalidate(byte[], SocketAddress[])},
+ * since they may have been sent before the mutation. Gets of the key sent afterwards thus see the
+ * mutation, while the detached ones are still answered.
+ */
+final class InflightGets {
+
+    @Nonnull
+    private final ConcurrentMap<Key, CompletableFuture<Packet>> inflight;
+
+    InflightGets() {
+        this.inflight = new ConcurrentHashMap<Key, CompletableFuture<Packet>>();
+    }
+
+    /**
+     * Registers the get to send unless an identical get is outstanding. The returned future is
+     * completed by a copy of the response, which does not share the frame of the pending one.
+     *
+     * @param leader completed by {@link #complete(Key, CompletableFuture, CompletableFuture)}
+     *        once the registered get is answered
+     * @return the response of the outstanding get to attach to, or null if the get is registered
+     *         and should be sent
+     */
+    @Nullable
+    CompletableFuture<Packet> join(@Nonnull final Key key,
+            @Nonnull final CompletableFuture<Packet> leader) {
+        final CompletableFuture<Packet> pending = inflight.putIfAbsent(key, leader);
+        if (pending == null) {
+            return null;
+        }
+        return pending.thenApply(new Function<Packet, Packet>() {
+            @Override
+            public Packet apply(Packet response) {
+                return new Packet(response.getHeader(), response.getBody());
+            }
+        });
+    }
+
+    /**
+     * Completes the registered get by the response and unregisters it.
+     */
+    void complete(@Nonnull final Key key, @Nonnull final CompletableFuture<Packet> leader,
+            @Nonnull final CompletableFuture<Packet> result) {
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                // gets arriving from now on are forwarded
+                inflight.remove(key, leader);
+                if (error == null) {
+                    leader.complete(response);
+                } else {
+                    leader.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Detaches the pending gets of the key from the given servers.
+     */
+    void invalidate(@Nonnull final byte[] key, @Nonnull final SocketAddress[] servers) {
+        if (inflight.isEmpty()) {
+            return;
+        }
+        for (SocketAddress server : servers) {
+            inflight.remove(new Key(server, OPCODE_GET, key));
+            inflight.remove(new Key(server, OPCODE_GETK, key));
+        }
+    }
+
+    /**
+     * Detaches all of the pending gets.
+     */
+    void clear() {
+        inflight.clear();
+    }
+
+    /**
+     * Identifies a get by the server, the key, and whether the key is returned.
+     */
+    static final class Key {
+
+        @Nonnull
+        final SocketAddress server;
+        final byte opcode;
+        @Nonnull
+        final byte[] key;
+        final int hash;
+
+        /**
+         * @param opcode quiet gets are collapsed with their non-quiet counterparts
+         */
+        Key(@Nonnull SocketAddress server, byte opcode, @Nonnull byte[] key) {
+            this.server = server;
+            this.opcode = BinaryProtocol.asSyncOp(opcode);
+            this.key = key;
+            this.hash = (HashUtils.murmurhash3(key) * 31 + this.opcode) * 31 + server.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && opcode == other.opcode && server.equals(other.server)
+                    && Arrays.equals(key, other.key);
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.Settings;
+import memserv4j.util.lang.Primitives;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jboss.netty.channel.group.ChannelGroup;
+
+/**
+ * A {@link BinaryCommandProxy} that routes keys by a ketama consistent-hash ring. Membership
+ * changes rebuild the ring, which is then swapped atomically.
+ * <p>
+ * With replicas, a key is also replicated to the next distinct nodes clockwise on the ring.
+ * <p>
+ * For <code>memserv4j.gateway.migration.window</code> milliseconds after a membership change, a
+ * miss of a key whose owner has changed is answered by the owner on the previous ring, and the
+ * value found there is copied to the new owner. The new nodes are thus warmed up without the
+ * misses reaching the backing stores.
+ */
+public class KetamaCommandProxy extends BinaryCommandProxy {
+
+    /** the number of nodes a key is stored in */
+    private final int replicas;
+    @Nonnull
+    private volatile KetamaNodeLocator locator;
+    /** 0 to disable migration */
+    private final long migrationWindowMillis;
+    /** the ring before the last membership change while migrating, or null */
+    @Nullable
+    private volatile Migration migration;
+
+    /**
+     * Routes to the nodes of <code>memserv4j.gateway.servers</code>, a comma separated list of
+     * "host:port[=weight]".
+     */
+    public KetamaCommandProxy(@Nonnull ChannelGroup acceptedChannels) {
+        this(acceptedChannels, getServers());
+    }
+
+    /**
+     * Stores a key in <code>memserv4j.gateway.replicas</code> nodes (defaults to 1).
+     */
+    public KetamaCommandProxy(@Nonnull ChannelGroup acceptedChannels,
+            @Nonnull Map<SocketAddress, Integer> nodes) {
+        this(acceptedChannels, nodes,
+            Primitives.parseInt(Settings.get("memserv4j.gateway.replicas"), 1));
+    }
+
+    public KetamaCommandProxy(@Nonnull ChannelGroup acceptedChannels,
+            @Nonnull Map<SocketAddress, Integer> nodes, int replicas) {
+        super(acceptedChannels);
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive: " + replicas);
+        }
+        this.replicas = replicas;
+        this.locator = new KetamaNodeLocator(nodes);
+        this.migrationWindowMillis =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.migration.window"), 0);
+    }
+
+    @Nonnull
+    private static Map<SocketAddress, Integer> getServers() {
+        String servers = Settings.get("memserv4j.gateway.servers");
+        if (servers == null) {
+            throw new IllegalStateException("memserv4j.gateway.servers is not configured");
+        }
+        return KetamaNodeLocator.parseNodes(servers);
+    }
+
+    @Nonnull
+    public KetamaNodeLocator getLocator() {
+        return locator;
+    }
+
+    @Nonnull
+    public Map<SocketAddress, Integer> getNodes() {
+        return locator.getWeights();
+    }
+
+    public synchronized void setNodes(@Nonnull Map<SocketAddress, Integer> nodes) {
+        setLocator(new KetamaNodeLocator(nodes));
+    }
+
+    public synchronized void addNode(@Nonnull SocketAddress node, int weight) {
+        Map<SocketAddress, Integer> nodes =
+                new LinkedHashMap<SocketAddress, Integer>(locator.getWeights());
+        nodes.put(node, weight);
+        setLocator(new KetamaNodeLocator(nodes));
+    }
+
+    public synchronized void removeNode(@Nonnull SocketAddress node) {
+        Map<SocketAddress, Integer> nodes =
+                new LinkedHashMap<SocketAddress, Integer>(locator.getWeights());
+        if (nodes.remove(node) != null) {
+            setLocator(new KetamaNodeLocator(nodes));
+        }
+    }
+
+    /**
+     * Starts migrating from the current ring unless disabled. A change during a migration starts
+     * another one from the intermediate ring.
+     */
+    private void setLocator(@Nonnull final KetamaNodeLocator newLocator) {
+        if (migrationWindowMillis > 0L) {
+            this.migration = new Migration(locator,
+                System.currentTimeMillis() + migrationWindowMillis);
+        }
+        this.locator = newLocator;
+    }
+
+    @Override
+    protected SocketAddress getSocket(final byte[] key) {
+        return locator.getNode(key);
+    }
+
+    @Override
+    protected SocketAddress[] getReplicas(final byte[] key) {
+        if (replicas == 1) {
+            return super.getReplicas(key);
+        }
+        return locator.getNodes(key, replicas);
+    }
+
+    @Override
+    protected SocketAddress[] getPreviousReplicas(final byte[] key) {
+        final Migration m = migration;
+        if (m == null || System.currentTimeMillis() >= m.deadline) {
+            return null;
+        }
+        if (replicas == 1) {
+            return new SocketAddress[] {m.locator.getNode(key)};
+        }
+        return m.locator.getNodes(key, replicas);
+    }
+
+    @Override
+    protected Collection<SocketAddress> getSockets() {
+        return locator.getWeights().keySet();
+    }
+
+    private static final class Migration {
+
+        @Nonnull
+        final KetamaNodeLocator locator;
+        final long deadline;
+
+        Migration(@Nonnull KetamaNodeLocator locator, long deadline) {
+            this.locator = locator;
+            this.deadline = deadline;
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.util.net.NetUtils;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable consistent-hash ring compatible with libketama. Each node owns
+ * <code>40 * 4 * weight / average weight</code> points derived from MD5 of "host:port-N", and a
+ * key belongs to the node of the first point at or after the first 4 bytes of MD5 of the key.
+ * Adding or removing one of N nodes thus moves about 1/N of the keys.
+ */
+public final class KetamaNodeLocator implements NodeLocator {
+
+    private static final int HASHES_PER_NODE = 40;
+    private static final int POINTS_PER_HASH = 4;
+    private static final int MAX_NODES = 1 << 20;
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not supported", e);
+            }
+        }
+    };
+
+    /** sorted unsigned 32 bit hash values */
+    @Nonnull
+    private final long[] points;
+    /** the node of each point */
+    @Nonnull
+    private final SocketAddress[] pointNodes;
+    @Nonnull
+    private final Map<SocketAddress, Integer> weights;
+
+    /**
+     * @param weights weight of each node
+     */
+    public KetamaNodeLocator(@Nonnull Map<SocketAddress, Integer> weights) {
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("No node is given");
+        }
+        if (weights.size() > MAX_NODES) {
+            throw new IllegalArgumentException("Too many nodes: " + weights.size());
+        }
+        final SocketAddress[] nodes = weights.keySet().toArray(new SocketAddress[0]);
+        final int numNodes = nodes.length;
+        long totalWeight = 0L;
+        for (SocketAddress node : nodes) {
+            int w = weights.get(node).intValue();
+            if (w <= 0) {
+                throw new IllegalArgumentException("Illegal weight " + w + " for " + node);
+            }
+            totalWeight += w;
+        }
+
+        // pack (point << 20 | node index) to sort points with their nodes
+        long[] packed = new long[numNodes * HASHES_PER_NODE * POINTS_PER_HASH * 2];
+        int n = 0;
+        for (int i = 0; i < numNodes; i++) {
+            // same float arithmetic as libketama for compatibility
+            final float pct = (float) weights.get(nodes[i]).intValue() / (float) totalWeight;
+            final int hashes =
+                    (int) Math.floor((float) (pct * (double) HASHES_PER_NODE * numNodes));
+            final String name = getNodeName(nodes[i]);
+            for (int k = 0; k < hashes; k++) {
+                final byte[] digest = md5((name + '-' + k).getBytes(StandardCharsets.US_ASCII));
+                for (int h = 0; h < POINTS_PER_HASH; h++) {
+                    if (n == packed.length) {
+                        packed = Arrays.copyOf(packed, n * 2);
+                    }
+                    packed[n++] = (toPoint(digest, h) << 20) | i;
+                }
+            }
+        }
+        if (n == 0) {
+            throw new IllegalArgumentException("No point is assigned: " + weights);
+        }
+        Arrays.sort(packed, 0, n);
+
+        this.points = new long[n];
+        this.pointNodes = new SocketAddress[n];
+        for (int j = 0; j < n; j++) {
+            points[j] = packed[j] >>> 20;
+            pointNodes[j] = nodes[(int) (packed[j] & (MAX_NODES - 1))];
+        }
+        this.weights =
+                Collections.unmodifiableMap(new LinkedHashMap<SocketAddress, Integer>(weights));
+    }
+
+    @Nonnull
+    public Map<SocketAddress, Integer> getWeights() {
+        return weights;
+    }
+
+    public int getNumberOfPoints() {
+        return points.length;
+    }
+
+    @Nonnull
+    public SocketAddress getNode(@Nonnull final byte[] key) {
+        return pointNodes[indexOf(hash(key))];
+    }
+
+    /**
+     * @return at most <code>n</code> distinct nodes found clockwise from the point of the key,
+     *         the first of which is {@link #getNode(byte[])}
+     */
+    @Nonnull
+    public SocketAddress[] getNodes(@Nonnull final byte[] key, final int n) {
+        final int numNodes = Math.min(n, weights.size());
+        final SocketAddress[] nodes = new SocketAddress[numNodes];
+        int found = 0;
+        int idx = indexOf(hash(key));
+        for (int i = 0; i < points.length && found < numNodes; i++) {
+            final SocketAddress node = pointNodes[idx];
+            boolean dup = false;
+            for (int j = 0; j < found; j++) {
+                if (nodes[j] == node) {
+                    dup = true;
+                    break;
+                }
+            }
+            if (!dup) {
+                nodes[found++] = node;
+            }
+            if (++idx == points.length) {
+                idx = 0;
+            }
+        }
+        return (found == numNodes) ? nodes : Arrays.copyOf(nodes, found);
+    }
+
+    /**
+     * @return the index of the first point at or after the given hash value
+     */
+    int indexOf(final long hash) {
+        int idx = Arrays.binarySearch(points, hash);
+        if (idx < 0) {
+            idx = -(idx + 1);
+            if (idx == points.length) {
+                idx = 0; // wrap around the ring
+            }
+        } else {
+            // the first of the duplicate points
+            while (idx > 0 && points[idx - 1] == hash) {
+                idx--;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * ketama_hashi: the first 4 bytes of MD5 in little endian.
+     */
+    public static long hash(@Nonnull final byte[] key) {
+        return toPoint(md5(key), 0);
+    }
+
+    private static long toPoint(@Nonnull final byte[] digest, final int h) {
+        final int off = h * 4;
+        return ((long) (digest[3 + off] & 0xFF) << 24) | ((long) (digest[2 + off] & 0xFF) << 16)
+                | ((long) (digest[1 + off] & 0xFF) << 8) | (digest[off] & 0xFF);
+    }
+
+    @Nonnull
+    private static byte[] md5(@Nonnull final byte[] b) {
+        final MessageDigest md = MD5.get();
+        md.reset();
+        return md.digest(b);
+    }
+
+    @Nonnull
+    private static String getNodeName(@Nonnull final SocketAddress node) {
+        if (node instanceof InetSocketAddress) {
+            InetSocketAddress addr = (InetSocketAddress) node;
+            return addr.getHostString() + ':' + addr.getPort();
+        }
+        return node.toString();
+    }
+
+    /**
+     * Parses a comma separated list of "host:port[=weight]".
+     */
+    @Nonnull
+    public static Map<SocketAddress, Integer> parseNodes(@Nonnull final String nodes) {
+        final Map<SocketAddress, Integer> weights = new LinkedHashMap<SocketAddress, Integer>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.length() == 0) {
+                continue;
+            }
+            int weight = 1;
+            final int pos = node.indexOf('=');
+            if (pos != -1) {
+                weight = Integer.parseInt(node.substring(pos + 1).trim());
+                node = node.substring(0, pos);
+            }
+            weights.put(NetUtils.parseSocketAddress(node), weight);
+        }
+        return weights;
+    }
+
+}
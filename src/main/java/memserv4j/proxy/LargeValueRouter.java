@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static memserv4j.binary.BinaryProtocol.OPCODE_ADD;
+import static memserv4j.binary.BinaryProtocol.OPCODE_ADDQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_REPLACE;
+import static memserv4j.binary.BinaryProtocol.OPCODE_REPLACEQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_SET;
+import static memserv4j.binary.BinaryProtocol.OPCODE_SETQ;
+
+import memserv4j.binary.BinaryProtocol.Header;
+import memserv4j.util.lang.BytesKey;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Routes values larger than a threshold to a dedicated {@link ServerPool}, so that large transfers
+ * and their slabs do not hold up small values.
+ * <p>
+ * Keys stored in the large pool are remembered in a bounded key directory, evicted in LRU order
+ * of lock-striped segments, so that their reads go to the large pool directly. A read of a key not
+ * in the directory goes to the regular servers first, and then to the large pool on a miss if
+ * <code>fallback</code> is enabled, since the directory forgets keys.
+ */
+final class LargeValueRouter {
+
+    private static final int NUM_SEGMENTS = 16;
+
+    @Nonnull
+    private final ServerPool pool;
+    /** values longer than this are large */
+    private final int threshold;
+    private final boolean fallback;
+    @Nonnull
+    private final Segment[] directory;
+
+    /**
+     * @param threshold values longer than this in bytes are routed to the large pool
+     * @param directorySize the maximum number of keys remembered to be in the large pool
+     * @param fallback whether to read the large pool on a miss of a key not in the directory
+     */
+    LargeValueRouter(@Nonnull ServerPool pool, int threshold, int directorySize,
+            boolean fallback) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        if (directorySize < 1) {
+            throw new IllegalArgumentException(
+                "directorySize must be positive: " + directorySize);
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+        this.fallback = fallback;
+        final int perSegment = Math.max(1, (directorySize + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        this.directory = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            directory[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * @return true if the request stores a value longer than the threshold
+     */
+    boolean isLargeStore(final byte opcode, @Nonnull final Header reqHeader) {
+        if (!isStore(opcode)) {
+            return false;
+        }
+        int valueLength =
+                reqHeader.getTotalBody() - reqHeader.getExtraLength() - reqHeader.getKeyLength();
+        return valueLength > threshold;
+    }
+
+    /**
+     * @return true if the request replaces the value of the key
+     */
+    static boolean isStore(final byte opcode) {
+        switch (opcode) {
+            case OPCODE_SET:
+            case OPCODE_SETQ:
+            case OPCODE_ADD:
+            case OPCODE_ADDQ:
+            case OPCODE_REPLACE:
+            case OPCODE_REPLACEQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    boolean isFallbackEnabled() {
+        return fallback;
+    }
+
+    /**
+     * @return the primary large-value server of the key
+     */
+    @Nonnull
+    SocketAddress getServer(@Nonnull final byte[] key) {
+        return pool.locator.getNode(key);
+    }
+
+    /**
+     * @return the large-value servers storing the key, the first of which is the primary
+     */
+    @Nonnull
+    SocketAddress[] getReplicas(@Nonnull final byte[] key) {
+        return pool.getReplicas(key);
+    }
+
+    @Nonnull
+    Collection<SocketAddress> getServers() {
+        return pool.locator.getWeights().keySet();
+    }
+
+    /**
+     * @return true if the key is remembered to be in the large pool
+     */
+    boolean contains(@Nonnull final byte[] key) {
+        final BytesKey k = new BytesKey(key);
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            return segment.get(k) != null;
+        }
+    }
+
+    void add(@Nonnull final byte[] key) {
+        final BytesKey k = new BytesKey(key);
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            segment.put(k, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return true if the key was remembered to be in the large pool
+     */
+    boolean remove(@Nonnull final byte[] key) {
+        final BytesKey k = new BytesKey(key);
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            return segment.remove(k) != null;
+        }
+    }
+
+    @Nonnull
+    private Segment segmentFor(@Nonnull final BytesKey k) {
+        return directory[(k.hashCode() >>> 28) & (NUM_SEGMENTS - 1)];
+    }
+
+    private static final class Segment extends LinkedHashMap<BytesKey, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BytesKey, Boolean> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+}
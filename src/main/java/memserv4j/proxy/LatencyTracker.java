@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * Estimates a percentile of recent latencies over a sliding window of samples. The estimate is
+ * recomputed every {@value #RECOMPUTE_INTERVAL} samples, so that recording costs a store.
+ * Concurrent recording may overwrite samples, which is acceptable for an estimate.
+ */
+final class LatencyTracker {
+
+    private static final int WINDOW = 1024; // MUST be power of two
+    private static final int RECOMPUTE_INTERVAL = 128;
+
+    private final double percentile;
+    private final long[] samples;
+    private final AtomicLong count;
+
+    /** the estimated percentile in nanoseconds, or -1 until estimated */
+    private volatile long estimate = -1L;
+
+    /**
+     * @param percentile in (0, 100]
+     */
+    LatencyTracker(double percentile) {
+        if (percentile <= 0d || percentile > 100d) {
+            throw new IllegalArgumentException("Illegal percentile: " + percentile);
+        }
+        this.percentile = percentile;
+        this.samples = new long[WINDOW];
+        this.count = new AtomicLong(0L);
+    }
+
+    void record(@Nonnegative final long nanos) {
+        final long n = count.getAndIncrement();
+        samples[(int) (n & (WINDOW - 1))] = nanos;
+        if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+            recompute((int) Math.min(n + 1, WINDOW));
+        }
+    }
+
+    private void recompute(final int size) {
+        final long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(percentile / 100d * size) - 1;
+        this.estimate = sorted[Math.max(0, idx)];
+    }
+
+    /**
+     * @return the estimated percentile in nanoseconds, or -1 if not enough samples yet
+     */
+    long getPercentile() {
+        return estimate;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static memserv4j.binary.BinaryProtocol.OPCODE_GET;
+import static memserv4j.binary.BinaryProtocol.OPCODE_GETK;
+import static memserv4j.binary.BinaryProtocol.OPCODE_GETKQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_GETQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_SET;
+import static memserv4j.binary.BinaryProtocol.OPCODE_SETQ;
+
+import memserv4j.AsyncMemcachedCommandHandler;
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.binary.BinaryProtocol.Header;
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.binary.BinaryProtocol.ResponseStatus;
+import memserv4j.util.MemcachedUtils;
+
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Serves requests for a server running in the same JVM by invoking its command handler directly,
+ * instead of sending them over a connection. The responses are built as if received from the
+ * server, without a frame, so that they take the same path back to the client.
+ */
+final class LocalCommandDispatcher {
+
+    @Nonnull
+    private final SocketAddress sockAddr;
+    @Nonnull
+    private final AsyncMemcachedCommandHandler handler;
+
+    /**
+     * @param sockAddr the address the local server is known by in the routing
+     */
+    LocalCommandDispatcher(@Nonnull SocketAddress sockAddr,
+            @Nonnull AsyncMemcachedCommandHandler handler) {
+        this.sockAddr = sockAddr;
+        this.handler = handler;
+    }
+
+    @Nonnull
+    SocketAddress getAddress() {
+        return sockAddr;
+    }
+
+    /**
+     * @return true if the request is destined to the local server and can be served by its handler
+     */
+    boolean accepts(@Nonnull final SocketAddress server, final byte opcode) {
+        if (!sockAddr.equals(server)) {
+            return false;
+        }
+        switch (opcode) {
+            case OPCODE_GET:
+            case OPCODE_GETK:
+            case OPCODE_GETQ:
+            case OPCODE_GETKQ:
+            case OPCODE_SET:
+            case OPCODE_SETQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return a future completed by the response of the non-quiet counterpart of the request
+     */
+    @Nonnull
+    CompletableFuture<Packet> send(final byte opcode, @Nonnull final Header reqHeader,
+            @Nonnull final ChannelBuffer body, @Nonnull final byte[] key) {
+        if (opcode == OPCODE_SET || opcode == OPCODE_SETQ) {
+            return set(reqHeader, body, key);
+        }
+        final boolean withKey = (opcode == OPCODE_GETK || opcode == OPCODE_GETKQ);
+        return handler.handleGet(key).toCompletableFuture().thenApply(
+            new Function<byte[], Packet>() {
+                @Override
+                public Packet apply(byte[] storedValue) {
+                    Header header = newResponseHeader(opcode);
+                    if (storedValue == null) {
+                        header.status(ResponseStatus.KEY_NOT_FOUND.status);
+                        return new Packet(header, null);
+                    }
+                    final byte[] value = MemcachedUtils.getValue(storedValue);
+                    final int keylen = withKey ? key.length : 0;
+                    header.setBodyLength((byte) 4, keylen, value.length);
+                    ChannelBuffer extras = ChannelBuffers.buffer(4 + keylen);
+                    extras.writeInt(MemcachedUtils.getFlags(storedValue));
+                    if (withKey) {
+                        extras.writeBytes(key);
+                    }
+                    return new Packet(header,
+                        ChannelBuffers.wrappedBuffer(extras, ChannelBuffers.wrappedBuffer(value)));
+                }
+            });
+    }
+
+    @Nonnull
+    private CompletableFuture<Packet> set(@Nonnull final Header reqHeader,
+            @Nonnull final ChannelBuffer body, @Nonnull final byte[] key) {
+        // request body (flags, expiration, key, value)
+        final int idx = body.readerIndex();
+        final int flags = body.getInt(idx);
+        final int expiry = body.getInt(idx + 4);
+        final int valueOffset = reqHeader.getExtraLength() + reqHeader.getKeyLength();
+        final int valueLength = reqHeader.getTotalBody() - valueOffset;
+        final byte[] storedValue = MemcachedUtils.makeInternalValue(flags, valueLength);
+        body.getBytes(idx + valueOffset, storedValue, storedValue.length - valueLength,
+            valueLength);
+        return handler.handleSet(key, storedValue, flags, expiry).toCompletableFuture().thenApply(
+            new Function<Short, Packet>() {
+                @Override
+                public Packet apply(Short status) {
+                    Header header = newResponseHeader(OPCODE_SET);
+                    if (status != null) {
+                        header.status(status.shortValue());
+                    }
+                    return new Packet(header, null);
+                }
+            });
+    }
+
+    @Nonnull
+    private static Header newResponseHeader(final byte opcode) {
+        return new Header(BinaryProtocol.MAGIC_BYTE_RESPONSE, BinaryProtocol.asSyncOp(opcode));
+    }
+
+}
@@ -19,6 +19,7 @@ import memserv4j.MemcachedException;
 import memserv4j.Settings;
 import memserv4j.binary.BinaryPipelineFactory;
 import memserv4j.util.concurrent.ExecutorFactory;
+import memserv4j.util.io.IOUtils;
 import memserv4j.util.lang.Primitives;
 import memserv4j.util.net.NetUtils;
 
@@ -29,7 +30,6 @@ import javax.annotation.Nonnull;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
@@ -48,7 +48,7 @@ public abstract class MemcachedProxyServer {
         bootstrap.setOption("child.keepAlive", true);
 
         final ChannelGroup acceptedChannels = new DefaultChannelGroup("all_client_connections");
-        ChannelHandler handler = getCommandProxy();
+        final BinaryCommandProxy handler = getCommandProxy();
         bootstrap.setPipelineFactory(new BinaryPipelineFactory(handler));
 
         int port = Primitives.parseInt(Settings.get("memserv4j.gateway.port"), 11211);
@@ -59,6 +59,7 @@ public abstract class MemcachedProxyServer {
             public void run() {
                 serverChannel.close().awaitUninterruptibly(); // close server socket
                 acceptedChannels.close().awaitUninterruptibly(); // close client connections
+                IOUtils.closeQuietly(handler); // close upstream connections
                 channelFactory.releaseExternalResources(); // stop the boss and worker threads of ChannelFactory
             }
         };
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.util.lang.HashUtils;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable locator that maps a key to the slot of its murmur3 hash modulo the number of
+ * slots, where each node owns as many slots as its weight. It costs less than a ketama ring, but
+ * adding or removing a node moves most of the keys.
+ */
+public final class ModuloNodeLocator implements NodeLocator {
+
+    @Nonnull
+    private final SocketAddress[] slots;
+    @Nonnull
+    private final Map<SocketAddress, Integer> weights;
+
+    public ModuloNodeLocator(@Nonnull Map<SocketAddress, Integer> weights) {
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("No node is given");
+        }
+        final List<SocketAddress> list = new ArrayList<SocketAddress>();
+        for (Map.Entry<SocketAddress, Integer> e : weights.entrySet()) {
+            int w = e.getValue().intValue();
+            if (w <= 0) {
+                throw new IllegalArgumentException("Illegal weight " + w + " for " + e.getKey());
+            }
+            for (int i = 0; i < w; i++) {
+                list.add(e.getKey());
+            }
+        }
+        this.slots = list.toArray(new SocketAddress[list.size()]);
+        this.weights =
+                Collections.unmodifiableMap(new LinkedHashMap<SocketAddress, Integer>(weights));
+    }
+
+    @Override
+    public SocketAddress getNode(@Nonnull final byte[] key) {
+        return slots[indexOf(key)];
+    }
+
+    /**
+     * @return the node of the key followed by the distinct nodes of the subsequent slots
+     */
+    @Override
+    public SocketAddress[] getNodes(@Nonnull final byte[] key, final int n) {
+        final int numNodes = Math.min(n, weights.size());
+        final SocketAddress[] nodes = new SocketAddress[numNodes];
+        int found = 0;
+        int idx = indexOf(key);
+        for (int i = 0; i < slots.length && found < numNodes; i++) {
+            final SocketAddress node = slots[idx];
+            boolean dup = false;
+            for (int j = 0; j < found; j++) {
+                if (nodes[j] == node) {
+                    dup = true;
+                    break;
+                }
+            }
+            if (!dup) {
+                nodes[found++] = node;
+            }
+            if (++idx == slots.length) {
+                idx = 0;
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public Map<SocketAddress, Integer> getWeights() {
+        return weights;
+    }
+
+    private int indexOf(@Nonnull final byte[] key) {
+        return (HashUtils.murmurhash3(key) & 0x7fffffff) % slots.length;
+    }
+
+}
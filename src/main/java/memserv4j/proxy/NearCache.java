@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.util.lang.BytesKey;
+import memserv4j.util.lang.HashUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded in-proxy L1 cache of GET responses for hot keys.
+ * <p>
+ * Entries live for a short time-to-live and are evicted in LRU order of lock-striped segments.
+ * Access frequencies of keys are estimated by a count-min sketch that is halved periodically,
+ * and only the keys accessed at least <code>admission</code> times in the recent window are
+ * admitted, so that one-hit keys do not wash hot keys out.
+ * <p>
+ * Each key has a write generation, which is advanced by every invalidation of the key. A get
+ * takes the generation of its key by {@link #generation(byte[])} before it is sent, and its
+ * response is cached only if the generation is unchanged when it arrives. Thus a response of a
+ * get that raced with a write is never cached, whichever of the get and the write is answered
+ * first. Generations are striped by the hash of the key, so that a write may merely skip caching
+ * a response of another key.
+ */
+final class NearCache {
+
+    private static final int NUM_SEGMENTS = 16;
+    private static final int NUM_GENERATIONS = 4096;
+
+    private final long ttlMillis;
+    private final int maxValueSize;
+    private final int admission;
+
+    @Nonnull
+    private final Segment[] segments;
+    @Nonnull
+    private final FrequencySketch sketch;
+    @Nonnull
+    private final AtomicLongArray generations;
+
+    /**
+     * @param maxEntries the maximum number of cached entries
+     * @param ttlMillis time-to-live of an entry in milliseconds
+     * @param maxValueSize values larger than this are not cached
+     * @param admission the minimum access frequency of a key to be admitted
+     */
+    NearCache(int maxEntries, long ttlMillis, int maxValueSize, int admission) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (ttlMillis < 1L) {
+            throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxValueSize = maxValueSize;
+        this.admission = admission;
+        final int perSegment = Math.max(1, (maxEntries + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+        this.segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.sketch = new FrequencySketch(maxEntries);
+        this.generations = new AtomicLongArray(NUM_GENERATIONS);
+    }
+
+    /**
+     * @return the write generation of the key to be passed to
+     *         {@link #put(byte[], int, byte[], long, long)}
+     */
+    long generation(@Nonnull final byte[] key) {
+        return generations.get(generationIndex(HashUtils.murmurhash3(key)));
+    }
+
+    /**
+     * Looks up a key and records the access.
+     */
+    @Nullable
+    Entry get(@Nonnull final byte[] key) {
+        final BytesKey k = new BytesKey(key);
+        sketch.increment(k.hashCode());
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            Entry e = segment.get(k);
+            if (e == null) {
+                return null;
+            }
+            if (e.expireAt <= System.currentTimeMillis()) {
+                segment.remove(k);
+                return null;
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Caches a value if the key is hot enough and has not been invalidated since the generation.
+     *
+     * @param generation the generation of the key taken before the value was read
+     */
+    void put(@Nonnull final byte[] key, final int flags, @Nonnull final byte[] value,
+            final long cas, final long generation) {
+        if (value.length > maxValueSize) {
+            return;
+        }
+        final BytesKey k = new BytesKey(key);
+        if (sketch.frequency(k.hashCode()) < admission) {
+            return;
+        }
+        final Entry e = new Entry(flags, value, cas, System.currentTimeMillis() + ttlMillis);
+        final int idx = generationIndex(k.hashCode());
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            // an invalidation advancing the generation after this check removes the entry later
+            if (generations.get(idx) != generation) {
+                return;
+            }
+            segment.put(k, e);
+        }
+    }
+
+    void invalidate(@Nonnull final byte[] key) {
+        final BytesKey k = new BytesKey(key);
+        generations.incrementAndGet(generationIndex(k.hashCode()));
+        final Segment segment = segmentFor(k);
+        synchronized (segment) {
+            segment.remove(k);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < NUM_GENERATIONS; i++) {
+            generations.incrementAndGet(i);
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static int generationIndex(final int hash) {
+        return hash & (NUM_GENERATIONS - 1);
+    }
+
+    @Nonnull
+    private Segment segmentFor(@Nonnull final BytesKey k) {
+        return segments[(k.hashCode() >>> 28) & (NUM_SEGMENTS - 1)];
+    }
+
+    static final class Entry {
+
+        final int flags;
+        @Nonnull
+        final byte[] value;
+        final long cas;
+        final long expireAt;
+
+        Entry(int flags, @Nonnull byte[] value, long cas, long expireAt) {
+            this.flags = flags;
+            this.value = value;
+            this.cas = cas;
+            this.expireAt = expireAt;
+        }
+
+    }
+
+    private static final class Segment extends LinkedHashMap<BytesKey, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BytesKey, Entry> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+    /**
+     * A count-min sketch of 4 rows with saturating 8 bit counters. All counters are halved
+     * after every <code>10 * maxEntries</code> increments to forget old accesses.
+     */
+    private static final class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x165667b1, 0x27d4eb2f};
+
+        @Nonnull
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maxEntries) {
+            int width = 64;
+            while (width < maxEntries && width < (1 << 24)) {
+                width <<= 1;
+            }
+            this.counters = new byte[DEPTH * width];
+            this.mask = width - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * maxEntries);
+        }
+
+        int frequency(final int hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[indexOf(hash, i)] & 0xff);
+            }
+            return min;
+        }
+
+        /**
+         * Races of concurrent increments merely lose counts, which is acceptable for an
+         * estimate.
+         */
+        void increment(final int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = indexOf(hash, i);
+                if (counters[idx] != (byte) 0xff) {
+                    counters[idx]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private synchronized void reset() {
+            if (additions < sampleSize) {
+                return; // already reset by another thread
+            }
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = (byte) ((counters[i] & 0xff) >>> 1);
+            }
+            this.additions = 0;
+        }
+
+        private int indexOf(final int hash, final int row) {
+            return (row * (mask + 1)) + (HashUtils.fmix32(hash ^ SEEDS[row]) & mask);
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import java.net.SocketAddress;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Maps keys to the nodes storing them.
+ */
+public interface NodeLocator {
+
+    @Nonnull
+    SocketAddress getNode(@Nonnull byte[] key);
+
+    /**
+     * @return at most <code>n</code> distinct nodes storing the key, the first of which is
+     *         {@link #getNode(byte[])}
+     */
+    @Nonnull
+    SocketAddress[] getNodes(@Nonnull byte[] key, int n);
+
+    /**
+     * @return all of the nodes with their weights
+     */
+    @Nonnull
+    Map<SocketAddress, Integer> getWeights();
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Picks two replicas at random and reads from the less loaded one, where the load of a server is
+ * the moving average of its latencies multiplied by the number of its in-flight requests plus
+ * one. Load thus moves away from a slow or congested server.
+ * <p>
+ * A failure counts as a latency of {@value #FAILURE_PENALTY_MILLIS} ms at least. The average
+ * decays while a server is not answering anything, so that an avoided server is tried again
+ * later rather than starving forever.
+ */
+public final class PowerOfTwoChoicesBalancer implements ReplicaBalancer {
+
+    private static final long FAILURE_PENALTY_MILLIS = 50L;
+    private static final long FAILURE_PENALTY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(FAILURE_PENALTY_MILLIS);
+    /** time constant of the decay of an idle average */
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(1L);
+    /** weight of a new latency sample */
+    private static final double EWMA_ALPHA = 0.2d;
+
+    @Nonnull
+    private final ConcurrentMap<SocketAddress, ServerLoad> loads;
+
+    public PowerOfTwoChoicesBalancer() {
+        this.loads = new ConcurrentHashMap<SocketAddress, ServerLoad>();
+    }
+
+    @Override
+    public int select(@Nonnull final SocketAddress[] replicas) {
+        final int n = replicas.length;
+        if (n < 2) {
+            return 0;
+        }
+        final int i, j;
+        if (n == 2) {
+            i = 0;
+            j = 1;
+        } else {
+            final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            final int a = rnd.nextInt(n);
+            final int b = (a + 1 + rnd.nextInt(n - 1)) % n;
+            i = Math.min(a, b);
+            j = Math.max(a, b);
+        }
+        final long now = System.nanoTime();
+        // ties go to the replica earlier in the ring order
+        return cost(replicas[j], now) < cost(replicas[i], now) ? j : i;
+    }
+
+    private double cost(@Nonnull final SocketAddress server, final long now) {
+        final ServerLoad load = loads.get(server);
+        if (load == null) {
+            return 0d;
+        }
+        return load.getLatency(now) * (load.inflight.get() + 1);
+    }
+
+    @Override
+    public void onSend(@Nonnull final SocketAddress server) {
+        getLoad(server).inflight.incrementAndGet();
+    }
+
+    @Override
+    public void onComplete(@Nonnull final SocketAddress server, final long latencyNanos,
+            final boolean success) {
+        final ServerLoad load = getLoad(server);
+        load.inflight.decrementAndGet();
+        load.update(success ? latencyNanos : Math.max(latencyNanos, FAILURE_PENALTY_NANOS),
+            System.nanoTime());
+    }
+
+    @Nonnull
+    private ServerLoad getLoad(@Nonnull final SocketAddress server) {
+        ServerLoad load = loads.get(server);
+        if (load == null) {
+            load = new ServerLoad();
+            ServerLoad existing = loads.putIfAbsent(server, load);
+            if (existing != null) {
+                load = existing;
+            }
+        }
+        return load;
+    }
+
+    /**
+     * Racy updates of the average merely lose samples, which is acceptable for an estimate.
+     */
+    private static final class ServerLoad {
+
+        @Nonnull
+        final AtomicInteger inflight = new AtomicInteger(0);
+        /** moving average of latencies in nanoseconds */
+        volatile double latency = 0d;
+        volatile long lastUpdate = 0L;
+
+        ServerLoad() {}
+
+        double getLatency(final long now) {
+            final double avg = latency;
+            final long idle = now - lastUpdate;
+            return (idle <= 0L) ? avg : avg * Math.exp(-idle / DECAY_NANOS);
+        }
+
+        void update(final long nanos, final long now) {
+            final double avg = getLatency(now);
+            this.latency = (avg == 0d) ? nanos : avg + EWMA_ALPHA * (nanos - avg);
+            this.lastUpdate = now;
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import java.net.SocketAddress;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Chooses the replica to read a key from, given the outcomes of the requests forwarded so far.
+ * Implementations MUST be thread-safe.
+ */
+public interface ReplicaBalancer {
+
+    /**
+     * @param replicas two or more servers storing the key
+     * @return the index of the replica to read from
+     */
+    int select(@Nonnull SocketAddress[] replicas);
+
+    /**
+     * Called when a request is forwarded to the server.
+     */
+    void onSend(@Nonnull SocketAddress server);
+
+    /**
+     * Called when a request forwarded to the server is answered or failed.
+     */
+    void onComplete(@Nonnull SocketAddress server, @Nonnegative long latencyNanos,
+            boolean success);
+
+}
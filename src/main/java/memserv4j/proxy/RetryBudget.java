@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * A token bucket limiting retries, so that retries cannot multiply the load on failing servers.
+ * Each request deposits a fraction of a token, and tokens also accrue at a minimum rate so that
+ * a light load can still retry. A retry withdraws a whole token.
+ * <p>
+ * For example, a ratio of 0.1 allows retries of up to 10% of the requests once the burst is
+ * spent.
+ */
+final class RetryBudget {
+
+    /** tokens are counted in thousandths */
+    private static final long SCALE = 1000L;
+
+    private final long depositPerRequest;
+    private final double refillPerNano;
+    private final long capacity;
+
+    private final AtomicLong balance;
+    private final AtomicLong lastRefill;
+
+    /**
+     * @param ratio the tokens deposited per request
+     * @param minPerSecond the tokens accrued per second regardless of requests
+     * @param burst the maximum number of tokens
+     */
+    RetryBudget(@Nonnegative float ratio, @Nonnegative int minPerSecond,
+            @Nonnegative int burst) {
+        if (ratio < 0f || minPerSecond < 0 || burst < 0) {
+            throw new IllegalArgumentException("Illegal retry budget: ratio=" + ratio
+                    + ", minPerSecond=" + minPerSecond + ", burst=" + burst);
+        }
+        this.depositPerRequest = (long) (ratio * SCALE);
+        this.refillPerNano = (double) (minPerSecond * SCALE) / TimeUnit.SECONDS.toNanos(1L);
+        this.capacity = burst * SCALE;
+        this.balance = new AtomicLong(capacity);
+        this.lastRefill = new AtomicLong(System.nanoTime());
+    }
+
+    void deposit() {
+        add(depositPerRequest);
+    }
+
+    /**
+     * @return true if a token is withdrawn for a retry, or false if the budget is exhausted
+     */
+    boolean tryWithdraw() {
+        refill();
+        while (true) {
+            final long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long last = lastRefill.get();
+        final long tokens = (long) ((now - last) * refillPerNano);
+        if (tokens > 0L && lastRefill.compareAndSet(last, now)) {
+            add(tokens);
+        }
+    }
+
+    private void add(final long tokens) {
+        while (true) {
+            final long current = balance.get();
+            final long updated = Math.min(capacity, current + tokens);
+            if (updated == current || balance.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+}
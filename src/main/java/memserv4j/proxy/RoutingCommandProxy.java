@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.Settings;
+import memserv4j.util.collections.BytesPrefixTrie;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+/**
+ * A {@link BinaryCommandProxy} that routes a key to one of named pools of servers by the longest
+ * matching prefix of the key, falling back to the "default" pool. Each pool has its own hashing,
+ * replication and timeouts.
+ * <p>
+ * The pools are configured as follows:
+ *
+ * <pre>
+ * memserv4j.gateway.pools=sessions,large
+ * memserv4j.gateway.pool.sessions.servers=host1:11211,host2:11211
+ * memserv4j.gateway.pool.sessions.hash=modulo
+ * memserv4j.gateway.pool.sessions.replicas=2
+ * memserv4j.gateway.pool.sessions.timeout.read=100
+ * memserv4j.gateway.routes=session:=sessions,img:=large
+ * </pre>
+ *
+ * The "default" pool takes <code>memserv4j.gateway.servers</code> and
+ * <code>memserv4j.gateway.replicas</code> unless it is declared explicitly. Unspecified options
+ * of a pool take the global ones.
+ * <p>
+ * The routes are compiled into a {@link BytesPrefixTrie}, so that a key is routed without being
+ * decoded.
+ */
+public class RoutingCommandProxy extends BinaryCommandProxy {
+    private static final Log LOG = LogFactory.getLog(RoutingCommandProxy.class);
+
+    public static final String DEFAULT_POOL = "default";
+
+    @Nonnull
+    private final Map<String, ServerPool> pools;
+    @Nonnull
+    private final BytesPrefixTrie<ServerPool> routes;
+    @Nonnull
+    private final ServerPool defaultPool;
+    /** all of the servers of the pools */
+    @Nonnull
+    private final Set<SocketAddress> servers;
+
+    public RoutingCommandProxy(@Nonnull ChannelGroup acceptedChannels) {
+        super(acceptedChannels);
+        this.pools = loadPools();
+        this.defaultPool = pools.get(DEFAULT_POOL);
+        this.routes = loadRoutes(pools);
+        this.servers = new LinkedHashSet<SocketAddress>();
+        for (ServerPool pool : pools.values()) {
+            for (SocketAddress server : pool.locator.getWeights().keySet()) {
+                if (!servers.add(server)) {
+                    throw new IllegalStateException(
+                        server + " belongs to more than one pool: " + pool.name);
+                }
+                setTimeouts(server, pool.writeTimeoutMillis, pool.readTimeoutMillis);
+            }
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Routing " + routes.size() + " prefixes to pools " + pools.values());
+        }
+    }
+
+    @Nonnull
+    private static Map<String, ServerPool> loadPools() {
+        final Map<String, ServerPool> pools = new LinkedHashMap<String, ServerPool>();
+        final String names = Settings.get("memserv4j.gateway.pools");
+        if (names != null) {
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                pools.put(name, ServerPool.load(name));
+            }
+        }
+        if (!pools.containsKey(DEFAULT_POOL)) {
+            ServerPool pool =
+                    ServerPool.load(DEFAULT_POOL, Settings.get("memserv4j.gateway.servers"));
+            if (pool == null) {
+                throw new IllegalStateException("memserv4j.gateway.servers is not configured");
+            }
+            pools.put(DEFAULT_POOL, pool);
+        }
+        return pools;
+    }
+
+    /**
+     * Parses <code>memserv4j.gateway.routes</code>, a comma separated list of "prefix=pool".
+     */
+    @Nonnull
+    private static BytesPrefixTrie<ServerPool> loadRoutes(
+            @Nonnull final Map<String, ServerPool> pools) {
+        final BytesPrefixTrie<ServerPool> routes = new BytesPrefixTrie<ServerPool>();
+        final String conf = Settings.get("memserv4j.gateway.routes");
+        if (conf == null) {
+            return routes;
+        }
+        for (String route : conf.split(",")) {
+            route = route.trim();
+            if (route.length() == 0) {
+                continue;
+            }
+            final int pos = route.lastIndexOf('=');
+            if (pos == -1) {
+                throw new IllegalArgumentException("Illegal route: " + route);
+            }
+            final String name = route.substring(pos + 1).trim();
+            final ServerPool pool = pools.get(name);
+            if (pool == null) {
+                throw new IllegalArgumentException("Unknown pool of route " + route);
+            }
+            byte[] prefix = route.substring(0, pos).getBytes(StandardCharsets.UTF_8);
+            if (routes.put(prefix, pool) != null) {
+                throw new IllegalArgumentException("Duplicate route: " + route);
+            }
+        }
+        return routes;
+    }
+
+    @Nonnull
+    private ServerPool route(@Nonnull final byte[] key) {
+        final ServerPool pool = routes.longestPrefixMatch(key);
+        return (pool == null) ? defaultPool : pool;
+    }
+
+    /**
+     * @return the locator of the pool of the given name, or null
+     */
+    @Nullable
+    public NodeLocator getLocator(@Nonnull String pool) {
+        ServerPool p = pools.get(pool);
+        return (p == null) ? null : p.locator;
+    }
+
+    @Override
+    protected SocketAddress getSocket(final byte[] key) {
+        return route(key).locator.getNode(key);
+    }
+
+    @Override
+    protected SocketAddress[] getReplicas(final byte[] key) {
+        return route(key).getReplicas(key);
+    }
+
+    @Override
+    protected Collection<SocketAddress> getSockets() {
+        return Collections.unmodifiableSet(servers);
+    }
+
+}
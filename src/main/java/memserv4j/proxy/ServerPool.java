@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.Settings;
+import memserv4j.util.lang.Primitives;
+
+import java.net.SocketAddress;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A named pool of servers with its own hashing, replication and timeouts, configured by
+ * <code>memserv4j.gateway.pool.&lt;name&gt;.*</code>. Unspecified options take the global ones.
+ */
+final class ServerPool {
+
+    @Nonnull
+    final String name;
+    @Nonnull
+    final NodeLocator locator;
+    /** the number of nodes a key is stored in */
+    final int replicas;
+    final long writeTimeoutMillis;
+    final long readTimeoutMillis;
+
+    ServerPool(@Nonnull String name, @Nonnull NodeLocator locator, int replicas,
+            long writeTimeoutMillis, long readTimeoutMillis) {
+        this.name = name;
+        this.locator = locator;
+        this.replicas = replicas;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * @return the pool configured by <code>memserv4j.gateway.pool.&lt;name&gt;.servers</code>
+     * @throws IllegalStateException if the servers of the pool are not configured
+     */
+    @Nonnull
+    static ServerPool load(@Nonnull final String name) {
+        final String key = "memserv4j.gateway.pool." + name + ".servers";
+        final ServerPool pool = load(name, Settings.get(key));
+        if (pool == null) {
+            throw new IllegalStateException(key + " is not configured");
+        }
+        return pool;
+    }
+
+    /**
+     * @param servers comma separated "host:port[=weight]"
+     * @return the pool of the given servers, or null if servers is null
+     */
+    @Nullable
+    static ServerPool load(@Nonnull final String name, @Nullable final String servers) {
+        if (servers == null) {
+            return null;
+        }
+        final String prefix = "memserv4j.gateway.pool." + name + '.';
+        final Map<SocketAddress, Integer> nodes = KetamaNodeLocator.parseNodes(servers);
+        final String hash = Settings.get(prefix + "hash", "ketama");
+        final NodeLocator locator;
+        if ("ketama".equals(hash)) {
+            locator = new KetamaNodeLocator(nodes);
+        } else if ("modulo".equals(hash)) {
+            locator = new ModuloNodeLocator(nodes);
+        } else {
+            throw new IllegalArgumentException("Unknown " + prefix + "hash: " + hash);
+        }
+        final int replicas = Primitives.parseInt(Settings.get(prefix + "replicas"),
+            Primitives.parseInt(Settings.get("memserv4j.gateway.replicas"), 1));
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive: " + replicas);
+        }
+        final long writeTimeout = Primitives.parseInt(Settings.get(prefix + "timeout.write"),
+            Primitives.parseInt(Settings.get("memserv4j.gateway.timeout.write"), 1000));
+        final long readTimeout = Primitives.parseInt(Settings.get(prefix + "timeout.read"),
+            Primitives.parseInt(Settings.get("memserv4j.gateway.timeout.read"), 1000));
+        return new ServerPool(name, locator, replicas, writeTimeout, readTimeout);
+    }
+
+    /**
+     * @return the nodes storing the key, the first of which is the primary
+     */
+    @Nonnull
+    SocketAddress[] getReplicas(@Nonnull final byte[] key) {
+        if (replicas == 1) {
+            return new SocketAddress[] {locator.getNode(key)};
+        }
+        return locator.getNodes(key, replicas);
+    }
+
+    @Override
+    public String toString() {
+        return name + locator.getWeights().keySet();
+    }
+
+}
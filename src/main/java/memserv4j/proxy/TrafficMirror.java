@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.util.lang.HashUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Mirrors a sample of requests to a shadow pool of servers and discards the responses.
+ * <p>
+ * Keys are sampled by their hash, so that the shadow pool sees all of the reads and writes of the
+ * sampled keys. The shadow pool has its own connections, and the mirrored requests outstanding
+ * are bounded; a request beyond the bound is dropped rather than queued, so that mirroring never
+ * holds up the primary path.
+ */
+final class TrafficMirror implements Closeable {
+    private static final Log LOG = LogFactory.getLog(TrafficMirror.class);
+
+    private static final int SAMPLE_SCALE = 1 << 16;
+
+    @Nonnull
+    private final UpstreamConnector connector;
+    @Nonnull
+    private final NodeLocator locator;
+    /** keys whose hash modulo {@link #SAMPLE_SCALE} is less than this are mirrored */
+    private final int sampleThreshold;
+    private final int maxPending;
+    @Nonnull
+    private final AtomicInteger pending = new AtomicInteger(0);
+    @Nonnull
+    private final AtomicLong dropped = new AtomicLong(0L);
+
+    /**
+     * @param sampleRate the fraction of keys to mirror
+     * @param maxPending the maximum number of mirrored requests outstanding
+     */
+    TrafficMirror(@Nonnull NodeLocator locator, float sampleRate, int maxPending) {
+        if (sampleRate <= 0f || sampleRate > 1f) {
+            throw new IllegalArgumentException("Illegal sample rate: " + sampleRate);
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        }
+        this.connector = new UpstreamConnector();
+        this.locator = locator;
+        this.sampleThreshold = (int) (sampleRate * SAMPLE_SCALE);
+        this.maxPending = maxPending;
+    }
+
+    boolean isSampled(@Nonnull final byte[] key) {
+        return (HashUtils.murmurhash3(key) & (SAMPLE_SCALE - 1)) < sampleThreshold;
+    }
+
+    /**
+     * Sends an encoded request of a sampled key to its shadow server unless too many are
+     * outstanding.
+     */
+    void send(@Nonnull final byte[] key, @Nonnull final ChannelBuffer request,
+            final int affinity) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            long n = dropped.incrementAndGet();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Dropped a mirrored request, " + n + " dropped so far");
+            }
+            return;
+        }
+        final SocketAddress sockAddr = locator.getNode(key);
+        final CompletableFuture<Packet> result = connector.send(sockAddr, request, affinity);
+        result.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                pending.decrementAndGet();
+                if (error != null && LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to mirror a request to " + sockAddr, error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        long n = dropped.get();
+        if (n > 0L) {
+            LOG.info(n + " mirrored requests were dropped as too many were outstanding");
+        }
+        connector.close();
+    }
+
+}
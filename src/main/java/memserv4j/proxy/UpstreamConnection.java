@@ -0,0 +1,437 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.binary.BinaryProtocol.Header;
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.util.netty.NettyUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * An upstream connection shared by many client requests. Each request is given a connection
+ * local opaque, which is written over the opaque of the request, and the response is matched
+ * with the request by the opaque through the in-flight table. Responses may thus arrive in any
+ * order.
+ * <p>
+ * Requests sent while a flush is pending are coalesced into a single gathering write, which is
+ * done by the I/O thread of the channel in its next event loop iteration. Many clients thus
+ * share write system calls and packets at high fan-in.
+ * <p>
+ * A request not answered within the read timeout after its write fails by
+ * {@link TimeoutException} alone, since a late response is told from the others by its opaque,
+ * and the other requests sharing the connection are not affected. The connection is closed only
+ * when its writes stall beyond the write timeout, or after a number of read timeouts in a row,
+ * which suggest the connection rather than a request is stuck.
+ */
+final class UpstreamConnection {
+
+    /** offset of the opaque in a binary protocol header */
+    private static final int OPAQUE_OFFSET = 12;
+
+    @Nonnull
+    private final SocketAddress sockAddr;
+    @Nonnull
+    private final ChannelFuture connectFuture;
+    @Nonnull
+    private final ConcurrentMap<Integer, Inflight> inflight;
+    @Nonnull
+    private final AtomicInteger nextOpaque;
+    @Nonnull
+    private final Timer timer;
+    private final long writeTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final int maxReadTimeouts;
+    /** read timeouts since the last response */
+    @Nonnull
+    private final AtomicInteger readTimeouts;
+
+    /** requests to be written by the next flush */
+    @Nonnull
+    private final Queue<PendingWrite> pendingWrites;
+    @Nonnull
+    private final AtomicBoolean flushScheduled;
+    @Nonnull
+    private final Runnable flushTask;
+
+    /**
+     * @param connectFuture a connect future whose channel has not been attached to anything yet
+     * @param writeTimeoutMillis timeout of a write once connected, or 0 to wait forever
+     * @param readTimeoutMillis timeout of a response since the write, or 0 to wait forever
+     * @param maxReadTimeouts read timeouts in a row to close the connection, or 0 never to close
+     */
+    UpstreamConnection(@Nonnull SocketAddress sockAddr, @Nonnull ChannelFuture connectFuture,
+            @Nonnull Timer timer, long writeTimeoutMillis, long readTimeoutMillis,
+            int maxReadTimeouts) {
+        this.sockAddr = sockAddr;
+        this.connectFuture = connectFuture;
+        this.timer = timer;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxReadTimeouts = maxReadTimeouts;
+        this.readTimeouts = new AtomicInteger(0);
+        this.pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        this.inflight = new ConcurrentHashMap<Integer, Inflight>();
+        this.nextOpaque = new AtomicInteger(0);
+        connectFuture.getChannel().setAttachment(this);
+    }
+
+    @Nonnull
+    SocketAddress getSocketAddress() {
+        return sockAddr;
+    }
+
+    @Nonnull
+    Channel getChannel() {
+        return connectFuture.getChannel();
+    }
+
+    boolean isClosed() {
+        return !connectFuture.getChannel().isOpen();
+    }
+
+    int getInflightCount() {
+        return inflight.size();
+    }
+
+    /**
+     * Sends an encoded request. The opaque of the request is overwritten.
+     *
+     * @return a future completed by the response, or exceptionally when the connection fails
+     */
+    @Nonnull
+    CompletableFuture<Packet> send(@Nonnull final ChannelBuffer request) {
+        return send(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Sends encoded requests by a single write. The opaques of the requests are overwritten.
+     *
+     * @return futures completed by the responses in the order of the requests
+     */
+    @Nonnull
+    List<CompletableFuture<Packet>> send(@Nonnull final List<ChannelBuffer> requests) {
+        final int size = requests.size();
+        final List<CompletableFuture<Packet>> results =
+                new ArrayList<CompletableFuture<Packet>>(size);
+        final Inflight[] handlers = new Inflight[size];
+        for (int i = 0; i < size; i++) {
+            SingleResponse handler = new SingleResponse();
+            handlers[i] = handler;
+            results.add(handler.result);
+        }
+        write(requests, handlers);
+        return results;
+    }
+
+    /**
+     * Sends an encoded request answered by a series of responses terminated by a response of an
+     * empty key, i.e., STAT.
+     *
+     * @return a future completed by all of the responses including the terminator
+     */
+    @Nonnull
+    CompletableFuture<List<Packet>> sendForMultiResponses(@Nonnull final ChannelBuffer request) {
+        final MultiResponse handler = new MultiResponse();
+        write(Collections.singletonList(request), new Inflight[] {handler});
+        return handler.result;
+    }
+
+    private void write(@Nonnull final List<ChannelBuffer> requests,
+            @Nonnull final Inflight[] handlers) {
+        final int size = requests.size();
+        final Integer[] opaques = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            ChannelBuffer request = requests.get(i);
+            Integer opaque = Integer.valueOf(nextOpaque.getAndIncrement());
+            request.setInt(request.readerIndex() + OPAQUE_OFFSET, opaque.intValue());
+            inflight.put(opaque, handlers[i]);
+            opaques[i] = opaque;
+        }
+        if (isClosed()) {
+            // failAll() might have been done before put
+            fail(opaques, handlers, new ClosedChannelException());
+            return;
+        }
+
+        final ChannelBuffer message = (size == 1) ? requests.get(0)
+                : ChannelBuffers.wrappedBuffer(requests.toArray(new ChannelBuffer[size]));
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    fail(opaques, handlers,
+                        new IOException("Failed to connect to " + sockAddr, future.getCause()));
+                    return;
+                }
+                pendingWrites.add(new PendingWrite(message, opaques, handlers));
+                if (flushScheduled.compareAndSet(false, true)) {
+                    NettyUtils.executeLater(future.getChannel(), flushTask);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the pending requests by a single gathering write. Called by the I/O thread of the
+     * channel once per event loop iteration at most.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+        PendingWrite w;
+        while ((w = pendingWrites.poll()) != null) {
+            writes.add(w);
+        }
+        final int size = writes.size();
+        if (size == 0) {
+            return;
+        }
+        final ChannelBuffer message;
+        if (size == 1) {
+            message = writes.get(0).message;
+        } else {
+            final ChannelBuffer[] messages = new ChannelBuffer[size];
+            for (int i = 0; i < size; i++) {
+                messages[i] = writes.get(i).message;
+            }
+            message = ChannelBuffers.wrappedBuffer(messages);
+        }
+
+        final ChannelFuture writeFuture = getChannel().write(message);
+        final Timeout writeTimeout = (writeTimeoutMillis <= 0L) ? null
+                : timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        if (!writeFuture.isDone()) {
+                            failWrites(writes, new TimeoutException("Write to " + sockAddr
+                                    + " timed out in " + writeTimeoutMillis + " ms"));
+                            close();
+                        }
+                    }
+                }, writeTimeoutMillis, TimeUnit.MILLISECONDS);
+        writeFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (writeTimeout != null) {
+                    writeTimeout.cancel();
+                }
+                if (!f.isSuccess()) {
+                    failWrites(writes, new IOException("Failed to write to " + sockAddr,
+                        f.getCause()));
+                    f.getChannel().close();
+                } else if (readTimeoutMillis > 0L) {
+                    for (PendingWrite w : writes) {
+                        for (int i = 0; i < w.opaques.length; i++) {
+                            scheduleReadTimeout(w.opaques[i], w.handlers[i]);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void failWrites(@Nonnull final List<PendingWrite> writes,
+            @Nonnull final Throwable cause) {
+        for (PendingWrite w : writes) {
+            fail(w.opaques, w.handlers, cause);
+        }
+    }
+
+    private void scheduleReadTimeout(@Nonnull final Integer opaque,
+            @Nonnull final Inflight handler) {
+        if (inflight.get(opaque) != handler) {
+            return; // already answered
+        }
+        handler.timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (inflight.remove(opaque, handler)) {
+                    handler.fail(new TimeoutException(
+                        "No response from " + sockAddr + " in " + readTimeoutMillis + " ms"));
+                    if (maxReadTimeouts > 0 && readTimeouts.incrementAndGet() >= maxReadTimeouts) {
+                        close();
+                    }
+                }
+            }
+        }, readTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (inflight.get(opaque) != handler) {
+            handler.timeout.cancel(); // answered while scheduling
+        }
+    }
+
+    private void fail(@Nonnull final Integer[] opaques, @Nonnull final Inflight[] handlers,
+            @Nonnull final Throwable cause) {
+        for (int i = 0; i < opaques.length; i++) {
+            if (inflight.remove(opaques[i], handlers[i])) {
+                handlers[i].fail(cause);
+            }
+        }
+    }
+
+    /**
+     * Called by the I/O thread of the channel.
+     *
+     * @return false if no request is waiting for the response
+     */
+    boolean complete(@Nonnull final Packet response) {
+        final Integer opaque = Integer.valueOf(response.getHeader().getOpaque());
+        final Inflight handler = inflight.get(opaque);
+        if (handler == null) {
+            return false; // e.g., a late response to a timed out request
+        }
+        readTimeouts.set(0);
+        if (handler.onResponse(response)) {
+            inflight.remove(opaque, handler);
+            final Timeout timeout = handler.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails all of the in-flight requests. Called when the channel is closed.
+     */
+    void failAll() {
+        final Iterator<Inflight> itor = inflight.values().iterator();
+        while (itor.hasNext()) {
+            Inflight handler = itor.next();
+            itor.remove();
+            final Timeout timeout = handler.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            handler.fail(new ClosedChannelException());
+        }
+    }
+
+    void close() {
+        connectFuture.getChannel().close();
+    }
+
+    private static final class PendingWrite {
+
+        @Nonnull
+        final ChannelBuffer message;
+        @Nonnull
+        final Integer[] opaques;
+        @Nonnull
+        final Inflight[] handlers;
+
+        PendingWrite(@Nonnull ChannelBuffer message, @Nonnull Integer[] opaques,
+                @Nonnull Inflight[] handlers) {
+            this.message = message;
+            this.opaques = opaques;
+            this.handlers = handlers;
+        }
+
+    }
+
+    private static abstract class Inflight {
+
+        /** the read timeout, if scheduled */
+        @Nullable
+        volatile Timeout timeout;
+
+        /**
+         * @return true if no more response is expected
+         */
+        abstract boolean onResponse(@Nonnull Packet response);
+
+        abstract void fail(@Nonnull Throwable cause);
+
+    }
+
+    private static final class SingleResponse extends Inflight {
+
+        @Nonnull
+        final CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+
+        @Override
+        boolean onResponse(Packet response) {
+            result.complete(response);
+            return true;
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+
+    }
+
+    private static final class MultiResponse extends Inflight {
+
+        @Nonnull
+        final CompletableFuture<List<Packet>> result = new CompletableFuture<List<Packet>>();
+        @Nonnull
+        final List<Packet> responses = new ArrayList<Packet>();
+
+        @Override
+        boolean onResponse(Packet response) {
+            responses.add(response);
+            final Header header = response.getHeader();
+            if (header.getKeyLength() == 0 || header.getStatus() != 0) {
+                result.complete(responses);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.Settings;
+import memserv4j.binary.BinaryCommandDecoder;
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.util.concurrent.ExecutorFactory;
+import memserv4j.util.concurrent.NamedThreadFactory;
+import memserv4j.util.lang.ExceptionUtils;
+import memserv4j.util.lang.Primitives;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+/**
+ * Forwards requests to upstream memcached servers over non-blocking Netty client channels.
+ * <p>
+ * Requests to a server are pipelined over a small fixed set of {@link UpstreamConnection}s, and
+ * a closed connection is replaced on the next request. Requests of a client go through the same
+ * connection so that they reach the server in the order sent by the client. Each request MUST
+ * be answered by exactly one response, i.e., quiet commands are sent as their non-quiet
+ * counterparts.
+ * <p>
+ * Unless <code>memserv4j.gateway.health.interval</code> is 0, the health of the servers is
+ * tracked by {@link UpstreamHealth} so that unhealthy servers can be avoided.
+ * <p>
+ * Connects, writes and reads time out by <code>memserv4j.gateway.timeout.connect</code>,
+ * <code>.write</code> and <code>.read</code> in milliseconds respectively, which are driven by
+ * the shared timer. The write and read timeouts can be overridden per server by
+ * {@link #setTimeouts(SocketAddress, long, long)}.
+ */
+final class UpstreamConnector implements Closeable {
+    private static final Log LOG = LogFactory.getLog(UpstreamConnector.class);
+
+    @Nonnull
+    private final ChannelFactory channelFactory;
+    @Nonnull
+    private final ClientBootstrap bootstrap;
+    private final int connectionsPerServer;
+    private final long writeTimeoutMillis;
+    private final long readTimeoutMillis;
+    /** read timeouts in a row that close a connection */
+    private final int maxReadTimeouts;
+    @Nonnull
+    private final ConcurrentMap<SocketAddress, ConnectionGroup> groups;
+    /** a shared timer of millisecond resolution for hedging and deadlines */
+    @Nonnull
+    private final Timer timer;
+    /** null if health checking is disabled */
+    @Nullable
+    private final UpstreamHealth health;
+
+    /**
+     * Opens <code>memserv4j.gateway.connections</code> connections per server (defaults to 2).
+     */
+    UpstreamConnector() {
+        this(Primitives.parseInt(Settings.get("memserv4j.gateway.connections"), 2));
+    }
+
+    UpstreamConnector(int connectionsPerServer) {
+        if (connectionsPerServer < 1) {
+            throw new IllegalArgumentException(
+                "connectionsPerServer must be positive: " + connectionsPerServer);
+        }
+        this.connectionsPerServer = connectionsPerServer;
+        this.writeTimeoutMillis =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.timeout.write"), 1000);
+        this.readTimeoutMillis =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.timeout.read"), 1000);
+        this.maxReadTimeouts = Primitives.parseInt(
+            Settings.get("memserv4j.gateway.timeout.read.close_after"), 3);
+        this.groups = new ConcurrentHashMap<SocketAddress, ConnectionGroup>();
+        this.timer = new HashedWheelTimer(new NamedThreadFactory("memcached-proxy-timer", true),
+            1L, TimeUnit.MILLISECONDS);
+        this.channelFactory = new NioClientSocketChannelFactory(
+            ExecutorFactory.newCachedThreadPool("memcached-proxy-upstream-boss"),
+            ExecutorFactory.newCachedThreadPool("memcached-proxy-upstream-worker"));
+        this.bootstrap = new ClientBootstrap(channelFactory);
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("keepAlive", true);
+        bootstrap.setOption("connectTimeoutMillis",
+            Primitives.parseInt(Settings.get("memserv4j.gateway.timeout.connect"), 1000));
+        final ResponseHandler handler = new ResponseHandler();
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder",
+                    new BinaryCommandDecoder(BinaryProtocol.MAGIC_BYTE_RESPONSE));
+                pipeline.addLast("response-handler", handler);
+                return pipeline;
+            }
+        });
+        long healthInterval =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.health.interval"), 1000);
+        if (healthInterval > 0L) {
+            this.health = new UpstreamHealth(this, healthInterval);
+            health.start();
+        } else {
+            this.health = null;
+        }
+    }
+
+    @Nonnull
+    Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Sends an encoded request to the given server. The opaque of the request is overwritten.
+     *
+     * @param affinity requests of the same affinity go through the same connection in order
+     * @return a future completed by the response, or exceptionally when the connection fails
+     */
+    @Nonnull
+    CompletableFuture<Packet> send(@Nonnull final SocketAddress sockAddr,
+            @Nonnull final ChannelBuffer request, final int affinity) {
+        final CompletableFuture<Packet> result = getConnection(sockAddr, affinity).send(request);
+        if (health != null) {
+            health.track(sockAddr, result);
+        }
+        return result;
+    }
+
+    /**
+     * Sends encoded requests to the given server by a single write.
+     *
+     * @param affinity requests of the same affinity go through the same connection in order
+     * @return futures completed by the responses in the order of the requests
+     */
+    @Nonnull
+    List<CompletableFuture<Packet>> send(@Nonnull final SocketAddress sockAddr,
+            @Nonnull final List<ChannelBuffer> requests, final int affinity) {
+        final List<CompletableFuture<Packet>> results =
+                getConnection(sockAddr, affinity).send(requests);
+        if (health != null) {
+            for (CompletableFuture<Packet> result : results) {
+                health.track(sockAddr, result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends an encoded request answered by a series of responses, i.e., STAT.
+     *
+     * @return a future completed by all of the responses including the terminator
+     */
+    @Nonnull
+    CompletableFuture<List<Packet>> sendForMultiResponses(@Nonnull final SocketAddress sockAddr,
+            @Nonnull final ChannelBuffer request, final int affinity) {
+        final CompletableFuture<List<Packet>> result =
+                getConnection(sockAddr, affinity).sendForMultiResponses(request);
+        if (health != null) {
+            health.track(sockAddr, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param read true for a read, which may avoid a server in recovery
+     * @return the given servers without the unhealthy ones in the same order, which may be empty
+     */
+    @Nonnull
+    SocketAddress[] filterHealthy(@Nonnull final SocketAddress[] servers, final boolean read) {
+        if (health == null) {
+            return servers;
+        }
+        return health.filter(servers, read);
+    }
+
+    /**
+     * Overrides the write and read timeouts of the server, which apply to connections opened
+     * afterwards.
+     */
+    void setTimeouts(@Nonnull final SocketAddress sockAddr, final long writeTimeoutMillis,
+            final long readTimeoutMillis) {
+        ConnectionGroup group = getGroup(sockAddr);
+        group.writeTimeoutMillis = writeTimeoutMillis;
+        group.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Nonnull
+    private UpstreamConnection getConnection(@Nonnull final SocketAddress sockAddr,
+            final int affinity) {
+        return getGroup(sockAddr).get(affinity);
+    }
+
+    @Nonnull
+    private ConnectionGroup getGroup(@Nonnull final SocketAddress sockAddr) {
+        ConnectionGroup group = groups.get(sockAddr);
+        if (group == null) {
+            group = new ConnectionGroup(sockAddr, connectionsPerServer);
+            ConnectionGroup existing = groups.putIfAbsent(sockAddr, group);
+            if (existing != null) {
+                group = existing;
+            }
+        }
+        return group;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ConnectionGroup group : groups.values()) {
+            group.close();
+        }
+        groups.clear();
+        if (health != null) {
+            health.stop();
+        }
+        timer.stop();
+        channelFactory.releaseExternalResources();
+    }
+
+    private final class ConnectionGroup {
+
+        @Nonnull
+        final SocketAddress sockAddr;
+        @Nonnull
+        final UpstreamConnection[] connections;
+        volatile long writeTimeoutMillis;
+        volatile long readTimeoutMillis;
+
+        ConnectionGroup(@Nonnull SocketAddress sockAddr, int size) {
+            this.sockAddr = sockAddr;
+            this.connections = new UpstreamConnection[size];
+            this.writeTimeoutMillis = UpstreamConnector.this.writeTimeoutMillis;
+            this.readTimeoutMillis = UpstreamConnector.this.readTimeoutMillis;
+        }
+
+        /**
+         * Picks the connection of the affinity, (re)connecting a missing or closed one.
+         */
+        @Nonnull
+        UpstreamConnection get(final int affinity) {
+            final int idx = (affinity & 0x7fffffff) % connections.length;
+            synchronized (this) {
+                UpstreamConnection conn = connections[idx];
+                if (conn == null || conn.isClosed()) {
+                    conn = new UpstreamConnection(sockAddr, bootstrap.connect(sockAddr), timer,
+                        writeTimeoutMillis, readTimeoutMillis, maxReadTimeouts);
+                    connections[idx] = conn;
+                }
+                return conn;
+            }
+        }
+
+        synchronized void close() {
+            for (UpstreamConnection conn : connections) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+
+    }
+
+    private static final class ResponseHandler extends SimpleChannelUpstreamHandler {
+
+        ResponseHandler() {
+            super();
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            final Channel channel = e.getChannel();
+            final UpstreamConnection conn = (UpstreamConnection) channel.getAttachment();
+            final Packet response = (Packet) e.getMessage();
+            if (conn == null || !conn.complete(response)) {
+                // a response to a request timed out, or else a protocol error
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Discarded a response not waited for from "
+                            + channel.getRemoteAddress() + ": " + response.getHeader());
+                }
+            }
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+                throws Exception {
+            final UpstreamConnection conn = (UpstreamConnection) e.getChannel().getAttachment();
+            if (conn != null) {
+                conn.failAll();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+                throws Exception {
+            LOG.error("Caught an exception on an upstream connection",
+                ExceptionUtils.getRootCause(e.getCause()));
+            e.getChannel().close();
+        }
+
+    }
+
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import memserv4j.Settings;
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.binary.BinaryProtocol.Header;
+import memserv4j.binary.BinaryProtocol.Packet;
+import memserv4j.binary.BinaryProtocol.ResponseStatus;
+import memserv4j.util.lang.Primitives;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Tracks the health of upstream servers and ejects unhealthy ones for a while.
+ * <p>
+ * Every request sent by the {@link UpstreamConnector} is tracked passively. A server is ejected
+ * on consecutive failures, on a high error rate within a check interval, or when its average
+ * latency is an outlier among the servers. Every check interval, servers are pinged by NOOP, and
+ * a ping unanswered until the next check counts as a failure.
+ * <p>
+ * An ejected server is not probed until its ejection time, which doubles on every ejection, has
+ * passed. Once a probe succeeds, traffic is let back gradually over the recovery time, and a
+ * failure during the recovery ejects it again.
+ * <p>
+ * Writes and deletes still go to a server ejected for its latency or error responses, since it is
+ * reachable and would otherwise serve values stale by the mutations it missed once back. A server
+ * ejected for I/O errors or timeouts may have missed mutations, whose staleness is bounded by the
+ * expiration times of the values; it is flushed before it is let back only if
+ * <code>memserv4j.gateway.health.flush_on_return</code> is true, since the flush empties its cache.
+ */
+final class UpstreamHealth implements TimerTask {
+    private static final Log LOG = LogFactory.getLog(UpstreamHealth.class);
+
+    /** latencies below this are never outliers */
+    private static final long MIN_OUTLIER_LATENCY = TimeUnit.MILLISECONDS.toNanos(1L);
+    /** the ejection time is doubled up to 2^6 times */
+    private static final int MAX_BACKOFF_SHIFT = 6;
+    /** weight of a new latency sample in the moving average */
+    private static final double EWMA_ALPHA = 0.05d;
+
+    @Nonnull
+    private final UpstreamConnector connector;
+    private final long intervalMillis;
+    private final int maxFailures;
+    private final float maxErrorRate;
+    private final int minRequests;
+    private final float latencyFactor;
+    private final long ejectionMillis;
+    private final int maxEjectionPercent;
+    private final long recoveryMillis;
+    /** whether to flush a server ejected for I/O errors or timeouts before letting it back */
+    private final boolean flushOnReturn;
+
+    @Nonnull
+    private final ConcurrentMap<SocketAddress, NodeHealth> nodes;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param intervalMillis the interval of checks and pings in milliseconds
+     */
+    UpstreamHealth(@Nonnull UpstreamConnector connector, long intervalMillis) {
+        this.connector = connector;
+        this.intervalMillis = intervalMillis;
+        this.maxFailures =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.health.failures"), 5);
+        this.maxErrorRate =
+                Primitives.parseFloat(Settings.get("memserv4j.gateway.health.error_rate"), 0.5f);
+        this.minRequests =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.health.min_requests"), 20);
+        this.latencyFactor = Primitives.parseFloat(
+            Settings.get("memserv4j.gateway.health.latency_factor"), 0f);
+        this.ejectionMillis =
+                Primitives.parseInt(Settings.get("memserv4j.gateway.health.ejection_time"), 1000);
+        this.maxEjectionPercent = Primitives.parseInt(
+            Settings.get("memserv4j.gateway.health.max_ejection_percent"), 50);
+        this.recoveryMillis = Primitives.parseInt(
+            Settings.get("memserv4j.gateway.health.recovery_time"), 10000);
+        this.flushOnReturn = Boolean.parseBoolean(
+            Settings.get("memserv4j.gateway.health.flush_on_return", "false"));
+        if (intervalMillis < 1L) {
+            throw new IllegalArgumentException("interval must be positive: " + intervalMillis);
+        }
+        this.nodes = new ConcurrentHashMap<SocketAddress, NodeHealth>();
+    }
+
+    void start() {
+        connector.getTimer().newTimeout(this, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * Tracks the result of a request to the given server.
+     */
+    void track(@Nonnull final SocketAddress sockAddr, @Nonnull final CompletableFuture<?> result) {
+        final NodeHealth node = getNode(sockAddr);
+        final long start = System.nanoTime();
+        result.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object response, Throwable error) {
+                if (error != null) {
+                    onFailure(node, false);
+                } else if (isServerError(response)) {
+                    onFailure(node, true);
+                } else {
+                    node.onSuccess(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    private static boolean isServerError(@Nullable final Object response) {
+        if (!(response instanceof Packet)) {
+            return false;
+        }
+        final short status = ((Packet) response).getHeader().getStatus();
+        return status == ResponseStatus.OUT_OF_MEMORY.status
+                || status == ResponseStatus.INTERNAL_ERROR.status
+                || status == ResponseStatus.BUSY.status
+                || status == ResponseStatus.TEMP_FAILURE.status;
+    }
+
+    /**
+     * @param read reads go to servers in recovery by the fraction of their recovery, or when no
+     *        other server is available, whereas writes go to them always so as not to miss, and
+     *        to ejected servers that are reachable
+     * @return the given servers without the ejected ones in the same order, or the given array as
+     *         is if none is ejected
+     */
+    @Nonnull
+    SocketAddress[] filter(@Nonnull final SocketAddress[] servers, final boolean read) {
+        int available = 0;
+        final boolean[] admitted = new boolean[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            NodeHealth node = nodes.get(servers[i]);
+            if (node == null
+                    || (read ? node.admit() : (node.state != State.EJECTED || node.reachable))) {
+                admitted[i] = true;
+                available++;
+            }
+        }
+        if (available == servers.length) {
+            return servers;
+        }
+        final List<SocketAddress> list = new ArrayList<SocketAddress>(servers.length);
+        for (int i = 0; i < servers.length; i++) {
+            if (admitted[i]) {
+                list.add(servers[i]);
+            }
+        }
+        if (list.isEmpty()) {
+            for (SocketAddress sockAddr : servers) {
+                NodeHealth node = nodes.get(sockAddr);
+                if (node != null && node.state == State.RECOVERING) {
+                    list.add(sockAddr);
+                }
+            }
+        }
+        return list.toArray(new SocketAddress[list.size()]);
+    }
+
+    @Nonnull
+    private NodeHealth getNode(@Nonnull final SocketAddress sockAddr) {
+        NodeHealth node = nodes.get(sockAddr);
+        if (node == null) {
+            node = new NodeHealth(sockAddr);
+            NodeHealth existing = nodes.putIfAbsent(sockAddr, node);
+            if (existing != null) {
+                node = existing;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @param reachable true if the server answered with an error
+     */
+    private void onFailure(@Nonnull final NodeHealth node, final boolean reachable) {
+        final int failures = node.onFailure(reachable);
+        if (node.state == State.RECOVERING) {
+            eject(node, "failed in recovery");
+        } else if (node.state == State.EJECTED) {
+            eject(node, "failed a probe"); // extends the ejection
+        } else if (maxFailures > 0 && failures >= maxFailures) {
+            eject(node, failures + " consecutive failures");
+        }
+    }
+
+    /**
+     * Checks the servers and pings them.
+     */
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (stopped) {
+            return;
+        }
+        try {
+            final long now = System.currentTimeMillis();
+            for (NodeHealth node : nodes.values()) {
+                check(node, now);
+            }
+            checkLatencyOutliers();
+            for (NodeHealth node : nodes.values()) {
+                ping(node, now);
+            }
+        } catch (Throwable e) {
+            LOG.error("Failed to check the health of upstream servers", e);
+        } finally {
+            if (!stopped) {
+                connector.getTimer().newTimeout(this, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void check(@Nonnull final NodeHealth node, final long now) {
+        final int requests = node.requests.getAndSet(0);
+        final int errors = node.errors.getAndSet(0);
+        final CompletableFuture<Packet> ping = node.ping;
+        if (ping != null && !ping.isDone()) {
+            node.ping = null;
+            onFailure(node, false);
+        }
+        switch (node.state) {
+            case HEALTHY:
+                if (requests >= minRequests && requests > 0
+                        && (float) errors / requests >= maxErrorRate) {
+                    eject(node, errors + " errors in " + requests + " requests");
+                } else if (node.ejections > 0 && now - node.since >= maxEjectionMillis()) {
+                    node.ejections = 0; // stayed healthy long enough to forget the backoff
+                }
+                break;
+            case RECOVERING:
+                node.admit(); // promotes to healthy at the end of the recovery
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void checkLatencyOutliers() {
+        if (latencyFactor <= 0f) {
+            return;
+        }
+        final List<NodeHealth> healthy = new ArrayList<NodeHealth>(nodes.size());
+        for (NodeHealth node : nodes.values()) {
+            if (node.state == State.HEALTHY && node.latency > 0d) {
+                healthy.add(node);
+            }
+        }
+        if (healthy.size() < 3) {
+            return; // no majority to compare with
+        }
+        final double[] latencies = new double[healthy.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = healthy.get(i).latency;
+        }
+        Arrays.sort(latencies);
+        final double median = latencies[latencies.length / 2];
+        final double threshold = Math.max(median * latencyFactor, MIN_OUTLIER_LATENCY);
+        for (NodeHealth node : healthy) {
+            final double latency = node.latency;
+            if (latency > threshold) {
+                node.lastFailureReachable = true;
+                eject(node, String.format("average latency %.3f ms exceeds %.3f ms",
+                    latency / 1000000d, threshold / 1000000d));
+            }
+        }
+    }
+
+    private void ping(@Nonnull final NodeHealth node, final long now) {
+        if (node.ping != null) {
+            return;
+        }
+        if (node.state == State.EJECTED && now < node.ejectedUntil) {
+            return;
+        }
+        final Header header =
+                new Header(BinaryProtocol.MAGIC_BYTE_REQUEST, BinaryProtocol.OPCODE_NOOP);
+        final ChannelBuffer cmd = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+        header.encode(cmd);
+        final CompletableFuture<Packet> ping = connector.send(node.sockAddr, cmd, 0);
+        node.ping = ping;
+        ping.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                if (node.ping == ping) {
+                    node.ping = null;
+                }
+            }
+        });
+    }
+
+    private void eject(@Nonnull final NodeHealth node, @Nonnull final String reason) {
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (node.state == State.EJECTED && now < node.ejectedUntil) {
+                return;
+            }
+            if (node.state == State.HEALTHY && !canEject()) {
+                LOG.warn("Not ejecting " + node.sockAddr + " (" + reason
+                        + ") as too many servers are ejected");
+                return;
+            }
+            final int shift = Math.min(node.ejections, MAX_BACKOFF_SHIFT);
+            final long duration = ejectionMillis << shift;
+            node.ejections++;
+            node.eject(now + duration);
+            LOG.warn("Ejected " + node.sockAddr + " for " + duration + " ms: " + reason);
+        }
+    }
+
+    /**
+     * Flushes a server that may have missed mutations while ejected, and then lets it back.
+     */
+    private void flushAndReintroduce(@Nonnull final NodeHealth node) {
+        final Header header =
+                new Header(BinaryProtocol.MAGIC_BYTE_REQUEST, BinaryProtocol.OPCODE_FLUSH);
+        final ChannelBuffer cmd = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH);
+        header.encode(cmd);
+        connector.send(node.sockAddr, cmd, 0).whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet response, Throwable error) {
+                final short status = (error == null) ? response.getHeader().getStatus() : -1;
+                // a server unable to flush is let back as is
+                final boolean unsupported = status == ResponseStatus.NOT_SUPPORTED.status
+                        || status == ResponseStatus.UNKNOWN.status;
+                synchronized (node) {
+                    node.flushing = false;
+                    if ((status == 0 || unsupported) && node.state == State.EJECTED) {
+                        node.reintroduce();
+                    }
+                }
+                if (error != null) {
+                    LOG.warn("Failed to flush " + node.sockAddr + " to let it back", error);
+                } else if (unsupported) {
+                    LOG.warn(node.sockAddr + " does not support FLUSH, and may serve values"
+                            + " stale by the mutations missed while ejected");
+                } else if (status != 0) {
+                    LOG.warn("Failed to flush " + node.sockAddr + " to let it back: status "
+                            + status);
+                }
+            }
+        });
+    }
+
+    private boolean canEject() {
+        int ejected = 0;
+        for (NodeHealth node : nodes.values()) {
+            if (node.state != State.HEALTHY) {
+                ejected++;
+            }
+        }
+        final int max = Math.max(1, nodes.size() * maxEjectionPercent / 100);
+        return ejected < max;
+    }
+
+    private long maxEjectionMillis() {
+        return ejectionMillis << MAX_BACKOFF_SHIFT;
+    }
+
+    enum State {
+        HEALTHY, EJECTED, RECOVERING
+    }
+
+    private final class NodeHealth {
+
+        @Nonnull
+        final SocketAddress sockAddr;
+        @Nonnull
+        final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        /** requests and errors in the current check interval */
+        @Nonnull
+        final AtomicInteger requests = new AtomicInteger(0);
+        @Nonnull
+        final AtomicInteger errors = new AtomicInteger(0);
+        /** moving average of latencies in nanoseconds, racy updates are acceptable */
+        volatile double latency = 0d;
+        /** whether the last failure was answered by the server */
+        volatile boolean lastFailureReachable = false;
+        /** whether the server was reachable when ejected */
+        volatile boolean reachable = false;
+        /** whether the server is being flushed to let it back */
+        boolean flushing = false;
+
+        volatile State state = State.HEALTHY;
+        /** when the current state began */
+        volatile long since = System.currentTimeMillis();
+        volatile long ejectedUntil = 0L;
+        /** the number of recent ejections, which decides the ejection time */
+        int ejections = 0;
+        /** an outstanding ping, accessed by the timer thread */
+        @Nullable
+        volatile CompletableFuture<Packet> ping;
+
+        NodeHealth(@Nonnull SocketAddress sockAddr) {
+            this.sockAddr = sockAddr;
+        }
+
+        void onSuccess(final long nanos) {
+            requests.incrementAndGet();
+            consecutiveFailures.set(0);
+            final double avg = latency;
+            this.latency = (avg == 0d) ? nanos : avg + EWMA_ALPHA * (nanos - avg);
+            if (state == State.EJECTED) {
+                synchronized (this) {
+                    if (state == State.EJECTED && !flushing
+                            && System.currentTimeMillis() >= ejectedUntil) {
+                        if (reachable || !flushOnReturn) {
+                            reintroduce();
+                        } else {
+                            this.flushing = true;
+                            flushAndReintroduce(this);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param reachable true if the server answered with an error
+         * @return the number of consecutive failures
+         */
+        int onFailure(final boolean reachable) {
+            requests.incrementAndGet();
+            errors.incrementAndGet();
+            this.lastFailureReachable = reachable;
+            if (!reachable && state == State.EJECTED) {
+                this.reachable = false; // a mutation sent to it may have been missed
+            }
+            return consecutiveFailures.incrementAndGet();
+        }
+
+        synchronized void eject(final long until) {
+            this.ejectedUntil = until;
+            this.latency = 0d;
+            // once unreachable, the server may have missed mutations until it is flushed
+            this.reachable = lastFailureReachable && (state != State.EJECTED || reachable);
+            consecutiveFailures.set(0);
+            transit(State.EJECTED);
+        }
+
+        synchronized void reintroduce() {
+            transit(State.RECOVERING);
+            LOG.info("Reintroducing " + sockAddr + " over " + recoveryMillis + " ms");
+        }
+
+        /**
+         * @return whether to route a request to this server
+         */
+        boolean admit() {
+            switch (state) {
+                case HEALTHY:
+                    return true;
+                case RECOVERING: {
+                    final long elapsed = System.currentTimeMillis() - since;
+                    if (elapsed >= recoveryMillis) {
+                        synchronized (this) {
+                            if (state == State.RECOVERING) {
+                                transit(State.HEALTHY);
+                                LOG.info("Recovered " + sockAddr);
+                            }
+                        }
+                        return true;
+                    }
+                    return ThreadLocalRandom.current().nextLong(recoveryMillis) < elapsed;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        private void transit(@Nonnull final State newState) {
+            this.since = System.currentTimeMillis();
+            this.state = newState;
+        }
+
+    }
+
+}
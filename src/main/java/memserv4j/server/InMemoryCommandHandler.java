@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.server;
+
+import memserv4j.MemcachedCommandHandler;
+import memserv4j.binary.BinaryProtocol.ResponseStatus;
+import memserv4j.util.collections.BytesHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A built-in store backed by an incrementally rehashed {@link BytesHashMap}. Expired items are
+ * removed lazily on access.
+ * <p>
+ * This class is NOT thread-safe; use it as the single-writer store of a partition of
+ * {@link PartitionedCommandHandler}.
+ */
+public final class InMemoryCommandHandler implements MemcachedCommandHandler {
+
+    /** expiry larger than 30 days is an absolute unix time */
+    private static final int RELATIVE_EXPIRY_LIMIT = 60 * 60 * 24 * 30;
+
+    @Nonnull
+    private final BytesHashMap<Item> index;
+
+    public InMemoryCommandHandler() {
+        this.index = new BytesHashMap<Item>();
+    }
+
+    public InMemoryCommandHandler(int initialCapacity) {
+        this.index = new BytesHashMap<Item>(initialCapacity);
+    }
+
+    @Override
+    public byte[] handleGet(byte[] key) {
+        final Item item = index.get(key);
+        if (item == null) {
+            return null;
+        }
+        if (item.isExpired(System.currentTimeMillis())) {
+            index.remove(key);
+            return null;
+        }
+        return item.value;
+    }
+
+    @Override
+    public short handleSet(byte[] key, byte[] value, int flags, int expiry) {
+        if (expiry < 0) {
+            index.remove(key); // immediately expired
+            return ResponseStatus.NO_ERROR.status;
+        }
+        index.put(key, new Item(value, toExpirationTime(expiry)));
+        return ResponseStatus.NO_ERROR.status;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Migrates buckets of an ongoing resize. Can be called by the owner thread when idle.
+     *
+     * @return true if resizing is still in progress
+     */
+    public boolean rehash(int buckets) {
+        return index.rehash(buckets);
+    }
+
+    private static long toExpirationTime(final int expiry) {
+        if (expiry == 0) {
+            return 0L; // never expires
+        }
+        if (expiry <= RELATIVE_EXPIRY_LIMIT) {
+            return System.currentTimeMillis() + expiry * 1000L;
+        }
+        return expiry * 1000L;
+    }
+
+    @Nonnull
+    public static PartitionedCommandHandler.HandlerFactory factory(final int initialCapacity) {
+        return new PartitionedCommandHandler.HandlerFactory() {
+            @Override
+            public MemcachedCommandHandler newHandler(int partition) {
+                return new InMemoryCommandHandler(initialCapacity);
+            }
+        };
+    }
+
+    private static final class Item {
+
+        @Nonnull
+        final byte[] value;
+        final long expirationTime;
+
+        Item(@Nonnull byte[] value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+
+        boolean isExpired(final long now) {
+            return expirationTime != 0L && expirationTime <= now;
+        }
+
+    }
+
+}
@@ -15,58 +15,97 @@
  */
 package memserv4j.server;
 
+import memserv4j.AsyncCommandHandlerAdapter;
+import memserv4j.AsyncMemcachedCommandHandler;
 import memserv4j.MemcachedCommandHandler;
 import memserv4j.MemcachedException;
 import memserv4j.Settings;
 import memserv4j.binary.BinaryPipelineFactory;
 import memserv4j.binary.BinaryRequestHandler;
+import memserv4j.util.SystemUtils;
 import memserv4j.util.concurrent.ExecutorFactory;
 import memserv4j.util.lang.Primitives;
 import memserv4j.util.net.NetUtils;
+import memserv4j.util.netty.ReusePortHandler;
 
 import java.net.InetSocketAddress;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
 public abstract class MemcachedServer {
+    private static final Log LOG = LogFactory.getLog(MemcachedServer.class);
 
     @Nonnull
     private final String serviceNamePrefix;
+    /** the handler serving requests once started */
+    @Nullable
+    private volatile AsyncMemcachedCommandHandler cmdhandler;
 
     public MemcachedServer(@Nonnull String serviceNamePrefix) {
         this.serviceNamePrefix = serviceNamePrefix;
     }
 
+    /**
+     * Starts listener(s) of the server port. When <code>memserv4j.server.acceptors</code> is more
+     * than one, the port is shared by that number of listener sockets by SO_REUSEPORT, each of
+     * which has its own boss and worker threads. Then, the kernel balances incoming connections
+     * across the listeners.
+     */
     public void start() throws MemcachedException {
-        final ChannelFactory channelFactory = new NioServerSocketChannelFactory(
-            ExecutorFactory.newCachedThreadPool(serviceNamePrefix + "-boss"),
-            ExecutorFactory.newCachedThreadPool(serviceNamePrefix + "-worker"));
-        final ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
-        bootstrap.setOption("child.tcpNoDelay", true); // recommended
-        bootstrap.setOption("child.reuseAddress", true);
-        bootstrap.setOption("child.keepAlive", true);
+        int acceptors = Primitives.parseInt(Settings.get("memserv4j.server.acceptors"), 1);
+        if (acceptors > 1 && !NetUtils.isReusePortSupported()) {
+            LOG.warn("SO_REUSEPORT is not supported by the runtime. memserv4j.server.acceptors ("
+                    + acceptors + ") is ignored.");
+            acceptors = 1;
+        }
+        int workers = Primitives.parseInt(Settings.get("memserv4j.server.workers"),
+            SystemUtils.availableProcessors() * 2);
+        int workersPerAcceptor = Math.max(1, workers / acceptors);
 
         final ChannelGroup acceptedChannels = new DefaultChannelGroup("all_proxy_connections");
-        MemcachedCommandHandler cmdhandler = getCommandHandler();
+        AsyncMemcachedCommandHandler cmdhandler = getAsyncCommandHandler();
+        this.cmdhandler = cmdhandler;
         BinaryRequestHandler handler = new BinaryRequestHandler(acceptedChannels, cmdhandler);
-        bootstrap.setPipelineFactory(new BinaryPipelineFactory(handler));
 
         int port = Primitives.parseInt(Settings.get("memserv4j.server.port"), 11212);
-        final Channel serverChannel =
-                bootstrap.bind(new InetSocketAddress(NetUtils.getLocalHost(), port));
+        InetSocketAddress addr = new InetSocketAddress(NetUtils.getLocalHost(), port);
+
+        final ChannelGroup serverChannels = new DefaultChannelGroup("server_channels");
+        final ChannelFactory[] channelFactories = new ChannelFactory[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            String threadName = (acceptors == 1) ? serviceNamePrefix
+                    : (serviceNamePrefix + "-acceptor" + i);
+            ChannelFactory channelFactory = new NioServerSocketChannelFactory(
+                ExecutorFactory.newCachedThreadPool(threadName + "-boss"),
+                ExecutorFactory.newCachedThreadPool(threadName + "-worker"), workersPerAcceptor);
+            channelFactories[i] = channelFactory;
+            ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+            bootstrap.setOption("child.tcpNoDelay", true); // recommended
+            bootstrap.setOption("child.reuseAddress", true);
+            bootstrap.setOption("child.keepAlive", true);
+            if (acceptors > 1) {
+                bootstrap.setParentHandler(new ReusePortHandler());
+            }
+            bootstrap.setPipelineFactory(new BinaryPipelineFactory(handler));
+            serverChannels.add(bootstrap.bind(addr));
+        }
 
         Runnable shutdownRunnable = new Runnable() {
             public void run() {
-                serverChannel.close().awaitUninterruptibly(); // close server socket
+                serverChannels.close().awaitUninterruptibly(); // close server sockets
                 acceptedChannels.close().awaitUninterruptibly(); // close client connections
-                channelFactory.releaseExternalResources(); // stop the boss and worker threads of ChannelFactory
+                for (ChannelFactory channelFactory : channelFactories) {
+                    channelFactory.releaseExternalResources(); // stop the boss and worker threads of ChannelFactory
+                }
             }
         };
         Runtime.getRuntime().addShutdownHook(new Thread(shutdownRunnable));
@@ -75,6 +114,26 @@ public abstract class MemcachedServer {
     @Nonnull
     protected abstract MemcachedCommandHandler getCommandHandler();
 
+    /**
+     * Override this method to serve requests by a non-blocking handler. By default, the handler
+     * returned by {@link #getCommandHandler()} is invoked in the I/O threads.
+     */
+    @Nonnull
+    protected AsyncMemcachedCommandHandler getAsyncCommandHandler() {
+        return new AsyncCommandHandlerAdapter(getCommandHandler());
+    }
+
+    /**
+     * @return the handler serving requests, or null if not started. A proxy in the same JVM can
+     *         dispatch requests to it directly.
+     * @see memserv4j.proxy.BinaryCommandProxy#setLocalHandler(java.net.SocketAddress,
+     *      AsyncMemcachedCommandHandler)
+     */
+    @Nullable
+    public AsyncMemcachedCommandHandler getHandler() {
+        return cmdhandler;
+    }
+
     public void stop() throws MemcachedException {}
 
 }
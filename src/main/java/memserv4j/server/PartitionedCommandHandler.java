@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.server;
+
+import memserv4j.AsyncMemcachedCommandHandler;
+import memserv4j.MemcachedCommandHandler;
+import memserv4j.Settings;
+import memserv4j.util.SystemUtils;
+import memserv4j.util.concurrent.NamedThreadFactory;
+import memserv4j.util.lang.HashUtils;
+import memserv4j.util.lang.Primitives;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Share-nothing storage mode. The key space is hash-partitioned into single-writer partitions,
+ * each of which is owned by a dedicated thread. Requests are handed over to the owner through a
+ * lock-free queue, and thus the {@link MemcachedCommandHandler} of a partition is accessed by
+ * exactly one thread and needs no lock.
+ * <p>
+ * A multi-get spanning partitions is gathered by the per-connection response ordering of
+ * {@link memserv4j.binary.BinaryRequestHandler}, that is, the terminating NOOP is answered after
+ * every partition has answered.
+ */
+public final class PartitionedCommandHandler implements AsyncMemcachedCommandHandler, Closeable {
+    private static final Log LOG = LogFactory.getLog(PartitionedCommandHandler.class);
+
+    @Nonnull
+    private final Partition[] partitions;
+
+    /**
+     * Creates <code>memserv4j.server.partitions</code> partitions (defaults to the number of
+     * available processors).
+     */
+    public PartitionedCommandHandler(@Nonnull HandlerFactory factory) {
+        this(Primitives.parseInt(Settings.get("memserv4j.server.partitions"),
+            SystemUtils.availableProcessors()), factory);
+    }
+
+    public PartitionedCommandHandler(int numPartitions, @Nonnull HandlerFactory factory) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("numPartitions must be positive: " + numPartitions);
+        }
+        NamedThreadFactory threadFactory = new NamedThreadFactory("memcached-partition", true);
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            Partition p = new Partition(factory.newHandler(i));
+            Thread thread = threadFactory.newThread(p);
+            p.thread = thread;
+            partitions[i] = p;
+            thread.start();
+        }
+    }
+
+    public int getNumberOfPartitions() {
+        return partitions.length;
+    }
+
+    @Nonnull
+    private Partition partitionOf(@Nonnull final byte[] key) {
+        int h = HashUtils.murmurhash3(key) & 0x7fffffff;
+        return partitions[h % partitions.length];
+    }
+
+    @Override
+    public CompletionStage<byte[]> handleGet(byte[] key) {
+        GetTask task = new GetTask(key);
+        partitionOf(key).submit(task);
+        return task.future;
+    }
+
+    @Override
+    public CompletionStage<Short> handleSet(byte[] key, byte[] value, int flags, int expiry) {
+        SetTask task = new SetTask(key, value, flags, expiry);
+        partitionOf(key).submit(task);
+        return task.future;
+    }
+
+    @Override
+    public void close() {
+        for (Partition p : partitions) {
+            p.shutdown();
+        }
+    }
+
+    public interface HandlerFactory {
+
+        /**
+         * @return a handler that is accessed only by the owner thread of the partition
+         */
+        @Nonnull
+        MemcachedCommandHandler newHandler(int partition);
+
+    }
+
+    private static abstract class Task {
+
+        abstract void run(@Nonnull MemcachedCommandHandler handler);
+
+        abstract void fail(@Nonnull Throwable e);
+
+    }
+
+    private static final class GetTask extends Task {
+
+        @Nonnull
+        final byte[] key;
+        @Nonnull
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        GetTask(@Nonnull byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        void run(MemcachedCommandHandler handler) {
+            future.complete(handler.handleGet(key));
+        }
+
+        @Override
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+
+    }
+
+    private static final class SetTask extends Task {
+
+        @Nonnull
+        final byte[] key;
+        @Nonnull
+        final byte[] value;
+        final int flags;
+        final int expiry;
+        @Nonnull
+        final CompletableFuture<Short> future = new CompletableFuture<Short>();
+
+        SetTask(@Nonnull byte[] key, @Nonnull byte[] value, int flags, int expiry) {
+            this.key = key;
+            this.value = value;
+            this.flags = flags;
+            this.expiry = expiry;
+        }
+
+        @Override
+        void run(MemcachedCommandHandler handler) {
+            future.complete(handler.handleSet(key, value, flags, expiry));
+        }
+
+        @Override
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+
+    }
+
+    private static final class Partition implements Runnable {
+
+        @Nonnull
+        final MemcachedCommandHandler handler;
+        @Nonnull
+        final ConcurrentLinkedQueue<Task> queue;
+        @Nonnull
+        final AtomicBoolean parked;
+
+        Thread thread;
+        volatile boolean running = true;
+
+        Partition(@Nonnull MemcachedCommandHandler handler) {
+            this.handler = handler;
+            this.queue = new ConcurrentLinkedQueue<Task>();
+            this.parked = new AtomicBoolean(false);
+        }
+
+        void submit(@Nonnull final Task task) {
+            if (!running) {
+                task.fail(new RejectedExecutionException("Partition is already shutdown"));
+                return;
+            }
+            queue.offer(task);
+            if (!running && queue.remove(task)) {
+                // shut down after the check above; the worker may have drained the queue already
+                task.fail(new RejectedExecutionException("Partition is already shutdown"));
+                return;
+            }
+            if (parked.get() && parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void shutdown() {
+            this.running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Task task = queue.poll();
+                if (task == null) {
+                    parked.set(true);
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    parked.set(false);
+                    continue;
+                }
+                try {
+                    task.run(handler);
+                } catch (Throwable e) {
+                    LOG.error("Failed to handle a command", e);
+                    task.fail(e);
+                }
+            }
+            Task task;
+            while ((task = queue.poll()) != null) {
+                task.fail(new RejectedExecutionException("Partition is already shutdown"));
+            }
+        }
+
+    }
+
+}
@@ -81,11 +81,19 @@ public final class SystemUtils {
             throw new IllegalArgumentException();
         }
         // e.g., 1.3.12, 1.6
-        String str = versionStr.substring(0, 3);
-        if (versionStr.length() >= 5) {
-            str = str + versionStr.substring(4, 5);
+        if (versionStr.startsWith("1.")) {
+            String str = versionStr.substring(0, 3);
+            if (versionStr.length() >= 5 && Character.isDigit(versionStr.charAt(4))) {
+                str = str + versionStr.substring(4, 5);
+            }
+            return Float.parseFloat(str);
+        }
+        // e.g., 9, 11.0.2, 17-ea (JEP 223)
+        int end = 0;
+        while (end < versionStr.length() && Character.isDigit(versionStr.charAt(end))) {
+            end++;
         }
-        return Float.parseFloat(str);
+        return Float.parseFloat(versionStr.substring(0, end));
     }
 
     private static String getJavaVersion(String versionStr) {
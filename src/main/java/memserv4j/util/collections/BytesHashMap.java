@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.collections;
+
+import memserv4j.util.lang.HashUtils;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A chained hash table keyed by byte arrays that grows incrementally. Once the load factor is
+ * exceeded, a table of the doubled capacity is allocated and each subsequent operation migrates
+ * a bounded number of buckets to it, so that no single operation pays for rehashing all of the
+ * entries. Lookups consult both tables while rehashing.
+ * <p>
+ * This class is NOT thread-safe. It is intended to be owned by a single writer thread.
+ */
+public final class BytesHashMap<V> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final float DEFAULT_LOAD_FACTOR = 1.0f;
+    /** the number of buckets migrated per operation */
+    private static final int DEFAULT_REHASH_STEPS = 4;
+
+    private final float loadFactor;
+    private final int rehashSteps;
+
+    @Nonnull
+    private Entry<V>[] table;
+    /** the table being populated while rehashing, otherwise null */
+    @Nullable
+    private Entry<V>[] newTable;
+    /** the next bucket of {@link #table} to migrate, or -1 if not rehashing */
+    private int rehashIndex = -1;
+
+    private int size = 0;
+    private int threshold;
+
+    public BytesHashMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_REHASH_STEPS);
+    }
+
+    public BytesHashMap(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, DEFAULT_REHASH_STEPS);
+    }
+
+    public BytesHashMap(int initialCapacity, float loadFactor, int rehashSteps) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0f) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+        if (rehashSteps < 1) {
+            throw new IllegalArgumentException("Illegal rehash steps: " + rehashSteps);
+        }
+        this.loadFactor = loadFactor;
+        this.rehashSteps = rehashSteps;
+        this.table = newTable(tableSizeFor(initialCapacity));
+        this.threshold = (int) (table.length * loadFactor);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isRehashing() {
+        return rehashIndex != -1;
+    }
+
+    @Nullable
+    public V get(@Nonnull final byte[] key) {
+        if (isRehashing()) {
+            rehash(rehashSteps);
+        }
+        final Entry<V> e = getEntry(key, hash(key));
+        return (e == null) ? null : e.value;
+    }
+
+    public boolean containsKey(@Nonnull final byte[] key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, or null if none
+     */
+    @Nullable
+    public V put(@Nonnull final byte[] key, @Nonnull final V value) {
+        if (isRehashing()) {
+            rehash(rehashSteps);
+        }
+        final int hash = hash(key);
+        final Entry<V> e = getEntry(key, hash);
+        if (e != null) {
+            V old = e.value;
+            e.value = value;
+            return old;
+        }
+        // new entries go to the new table while rehashing
+        final Entry<V>[] tab = isRehashing() ? newTable : table;
+        final int idx = indexFor(hash, tab.length);
+        tab[idx] = new Entry<V>(key, hash, value, tab[idx]);
+        size++;
+        if (!isRehashing() && size > threshold) {
+            startRehash();
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null if none
+     */
+    @Nullable
+    public V remove(@Nonnull final byte[] key) {
+        if (isRehashing()) {
+            rehash(rehashSteps);
+        }
+        final int hash = hash(key);
+        V removed = removeEntry(table, key, hash);
+        if (removed == null && newTable != null) {
+            removed = removeEntry(newTable, key, hash);
+        }
+        if (removed != null) {
+            size--;
+        }
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(table, null);
+        this.newTable = null;
+        this.rehashIndex = -1;
+        this.size = 0;
+    }
+
+    /**
+     * Migrates at most <code>buckets</code> non-empty buckets. Can be called by the owner thread
+     * when idle to complete rehashing early.
+     *
+     * @return true if rehashing is still in progress
+     */
+    public boolean rehash(final int buckets) {
+        if (!isRehashing()) {
+            return false;
+        }
+        final Entry<V>[] oldTab = table;
+        final Entry<V>[] newTab = newTable;
+        assert (newTab != null);
+        // bound the number of visited empty buckets as well
+        int emptyVisits = buckets * 10;
+        int n = buckets;
+        while (n > 0 && rehashIndex < oldTab.length) {
+            Entry<V> e = oldTab[rehashIndex];
+            if (e == null) {
+                rehashIndex++;
+                if (--emptyVisits == 0) {
+                    break;
+                }
+                continue;
+            }
+            while (e != null) {
+                Entry<V> next = e.next;
+                int idx = indexFor(e.hash, newTab.length);
+                e.next = newTab[idx];
+                newTab[idx] = e;
+                e = next;
+            }
+            oldTab[rehashIndex] = null;
+            rehashIndex++;
+            n--;
+        }
+        if (rehashIndex >= oldTab.length) {
+            this.table = newTab;
+            this.newTable = null;
+            this.rehashIndex = -1;
+            this.threshold = (int) (newTab.length * loadFactor);
+            return false;
+        }
+        return true;
+    }
+
+    private void startRehash() {
+        if (table.length >= MAXIMUM_CAPACITY) {
+            this.threshold = Integer.MAX_VALUE; // cannot grow any more
+            return;
+        }
+        this.newTable = newTable(table.length << 1);
+        this.rehashIndex = 0;
+    }
+
+    @Nullable
+    private Entry<V> getEntry(@Nonnull final byte[] key, final int hash) {
+        Entry<V> e = findEntry(table, key, hash);
+        if (e == null && newTable != null) {
+            e = findEntry(newTable, key, hash);
+        }
+        return e;
+    }
+
+    @Nullable
+    private static <V> Entry<V> findEntry(@Nonnull final Entry<V>[] tab,
+            @Nonnull final byte[] key, final int hash) {
+        for (Entry<V> e = tab[indexFor(hash, tab.length)]; e != null; e = e.next) {
+            if (e.hash == hash && Arrays.equals(e.key, key)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static <V> V removeEntry(@Nonnull final Entry<V>[] tab, @Nonnull final byte[] key,
+            final int hash) {
+        final int idx = indexFor(hash, tab.length);
+        Entry<V> prev = null;
+        for (Entry<V> e = tab[idx]; e != null; prev = e, e = e.next) {
+            if (e.hash == hash && Arrays.equals(e.key, key)) {
+                if (prev == null) {
+                    tab[idx] = e.next;
+                } else {
+                    prev.next = e.next;
+                }
+                return e.value;
+            }
+        }
+        return null;
+    }
+
+    private static int hash(@Nonnull final byte[] key) {
+        return HashUtils.murmurhash3(key);
+    }
+
+    private static int indexFor(final int hash, final int length) {
+        return hash & (length - 1);
+    }
+
+    private static int tableSizeFor(final int capacity) {
+        if (capacity >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
+        }
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(final int capacity) {
+        return (Entry<V>[]) new Entry<?>[capacity];
+    }
+
+    private static final class Entry<V> {
+
+        @Nonnull
+        final byte[] key;
+        final int hash;
+        @Nonnull
+        V value;
+        @Nullable
+        Entry<V> next;
+
+        Entry(@Nonnull byte[] key, int hash, @Nonnull V value, @Nullable Entry<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+    }
+
+}
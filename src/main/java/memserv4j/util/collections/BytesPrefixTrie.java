@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.collections;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A trie over bytes that finds the value of the longest prefix of a byte array. Each node keeps
+ * the labels of its children in a sorted array, so that a lookup costs a binary search per byte
+ * of the matched prefix and allocates nothing.
+ * <p>
+ * This class is NOT thread-safe for updates. Populate it before publishing it to readers.
+ */
+public final class BytesPrefixTrie<V> {
+
+    @Nonnull
+    private final Node<V> root;
+    private int size = 0;
+
+    public BytesPrefixTrie() {
+        this.root = new Node<V>();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the previous value of the prefix, or null
+     */
+    @Nullable
+    public V put(@Nonnull final byte[] prefix, @Nonnull final V value) {
+        Node<V> node = root;
+        for (byte b : prefix) {
+            node = node.getOrAddChild(b);
+        }
+        final V prev = node.value;
+        node.value = value;
+        if (prev == null) {
+            size++;
+        }
+        return prev;
+    }
+
+    /**
+     * @return the value of the longest prefix of the key, or null if no prefix matches
+     */
+    @Nullable
+    public V longestPrefixMatch(@Nonnull final byte[] key) {
+        Node<V> node = root;
+        V matched = node.value;
+        for (int i = 0; i < key.length; i++) {
+            node = node.getChild(key[i]);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                matched = node.value;
+            }
+        }
+        return matched;
+    }
+
+    private static final class Node<V> {
+
+        @Nonnull
+        byte[] labels = new byte[0];
+        @Nonnull
+        Node<V>[] children = newArray(0);
+        @Nullable
+        V value;
+
+        Node() {}
+
+        @Nullable
+        Node<V> getChild(final byte label) {
+            final int idx = Arrays.binarySearch(labels, label);
+            return (idx < 0) ? null : children[idx];
+        }
+
+        @Nonnull
+        Node<V> getOrAddChild(final byte label) {
+            int idx = Arrays.binarySearch(labels, label);
+            if (idx >= 0) {
+                return children[idx];
+            }
+            idx = -(idx + 1);
+            final int n = labels.length;
+            final byte[] newLabels = new byte[n + 1];
+            final Node<V>[] newChildren = newArray(n + 1);
+            System.arraycopy(labels, 0, newLabels, 0, idx);
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(labels, idx, newLabels, idx + 1, n - idx);
+            System.arraycopy(children, idx, newChildren, idx + 1, n - idx);
+            final Node<V> child = new Node<V>();
+            newLabels[idx] = label;
+            newChildren[idx] = child;
+            this.labels = newLabels;
+            this.children = newChildren;
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(final int size) {
+            return (Node<V>[]) new Node<?>[size];
+        }
+
+    }
+
+}
@@ -19,71 +19,343 @@ import memserv4j.util.lang.PoolableObjectFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A keyed object pool bounded by the number of objects per key.
+ * <p>
+ * Idle objects are reused in LIFO order by default so that the most recently used, i.e., warm,
+ * objects are reused and the rest can expire. When <code>maxPerKey</code> objects of a key are
+ * in use, a borrower waits up to <code>maxWaitMillis</code> for one to be returned. Idle objects
+ * are evicted when they have been idle for the time-to-live of the factory or became invalid, and
+ * then the idle objects of a key are replenished to <code>minIdlePerKey</code> in background. A key
+ * left with no object is dropped by the eviction.
+ * <p>
+ * The two-argument constructor creates an unbounded pool whose borrowers never wait, as before.
+ */
 public final class ConcurrentKeyedStackObjectPool<K, V> implements Closeable {
+    private static final Log LOG = LogFactory.getLog(ConcurrentKeyedStackObjectPool.class);
+
+    /** no limit of objects per key, so that borrowers never wait */
+    public static final int DEFAULT_MAX_PER_KEY = Integer.MAX_VALUE;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 0L;
 
     private final PoolableObjectFactory<K, V> _factory;
-    private final ConcurrentMap<K, Queue<PooledObject<V>>> _poolMap;
+    private final ConcurrentMap<K, KeyedPool> _poolMap;
+    private final int _maxPerKey;
+    private final int _minIdlePerKey;
+    /** negative to wait forever */
+    private final long _maxWaitMillis;
+    private final boolean _lifo;
 
     private final Timer _sweepTimer;
+    /** pre-warms idle objects, or null if minIdlePerKey is 0 */
+    @Nullable
+    private final ExecutorService _warmer;
+    private volatile boolean _closed = false;
+
+    // metrics
+    private final AtomicLong _created = new AtomicLong(0L);
+    private final AtomicLong _destroyed = new AtomicLong(0L);
+    private final AtomicLong _borrowed = new AtomicLong(0L);
+    private final AtomicLong _returned = new AtomicLong(0L);
+    private final AtomicLong _evicted = new AtomicLong(0L);
+    private final AtomicLong _waited = new AtomicLong(0L);
+    private final AtomicLong _timedOut = new AtomicLong(0L);
+
+    /** returned by {@link KeyedPool#take(Object, long)} of a pool dropped from the map */
+    private final PooledObject<V> _dropped = new PooledObject<V>(null);
 
     public ConcurrentKeyedStackObjectPool(String sweepThreadName,
             PoolableObjectFactory<K, V> factory) {
+        this(sweepThreadName, factory, DEFAULT_MAX_PER_KEY, 0, DEFAULT_MAX_WAIT_MILLIS, true);
+    }
+
+    /**
+     * @param maxPerKey the maximum number of objects of a key, either idle or in use
+     * @param minIdlePerKey the number of idle objects of a key to keep ready
+     * @param maxWaitMillis how long to wait for an object when exhausted, or a negative value to
+     *        wait forever
+     * @param lifo reuse the most recently returned object first, or the least recently if false
+     */
+    public ConcurrentKeyedStackObjectPool(String sweepThreadName,
+            PoolableObjectFactory<K, V> factory, int maxPerKey, int minIdlePerKey,
+            long maxWaitMillis, boolean lifo) {
+        if (maxPerKey < 1) {
+            throw new IllegalArgumentException("maxPerKey must be positive: " + maxPerKey);
+        }
+        if (minIdlePerKey < 0 || minIdlePerKey > maxPerKey) {
+            throw new IllegalArgumentException("Illegal minIdlePerKey: " + minIdlePerKey);
+        }
         this._factory = factory;
         this._poolMap = new ConcurrentHashMap<>(8);
+        this._maxPerKey = maxPerKey;
+        this._minIdlePerKey = minIdlePerKey;
+        this._maxWaitMillis = maxWaitMillis;
+        this._lifo = lifo;
         this._sweepTimer = new Timer("ObjPoolExpirer#" + sweepThreadName, true);
         _sweepTimer.scheduleAtFixedRate(new Expirer(factory.getTimeToLive()), 3000,
             factory.getSweepInterval());
+        this._warmer = (minIdlePerKey == 0) ? null
+                : ExecutorFactory.newSingleThreadExecutor("ObjPoolWarmer#" + sweepThreadName,
+                    true);
     }
 
+    /**
+     * Borrows an idle object of the key, or creates one if less than <code>maxPerKey</code>
+     * objects exist. Otherwise waits for an object to be returned.
+     *
+     * @throws NoSuchElementException when no object became available in time
+     * @throws IllegalStateException when the pool is closed or the factory failed
+     */
+    @Nonnull
     public V borrowObject(K key) {
-        Queue<PooledObject<V>> queue = _poolMap.get(key);
-        if (queue == null) {
-            return _factory.makeObject(key);
-        }
-        PooledObject<V> popedObj = queue.poll();
-        if (popedObj != null) {
-            V value = popedObj.getValue();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_maxWaitMillis);
+        while (true) {
+            final KeyedPool pool = getPool(key);
+            final PooledObject<V> pooled = pool.take(key, deadline);
+            if (pooled == _dropped) {
+                continue;
+            }
+            if (pooled == null) {
+                // a slot was reserved for a new object
+                final V value = create(pool, key);
+                _borrowed.incrementAndGet();
+                return value;
+            }
+            final V value = pooled.getValue();
             if (_factory.validateObject(value)) {
-                return popedObj.getValue();
+                _borrowed.incrementAndGet();
+                return value;
             }
+            destroy(pool, value);
         }
-        return _factory.makeObject(key);
     }
 
+    /**
+     * Returns a borrowed object. An invalid object is destroyed instead.
+     */
     public void returnObject(K key, V value) {
-        if (!_factory.validateObject(value)) {
+        final KeyedPool pool = getPool(key);
+        _returned.incrementAndGet();
+        if (_closed || !_factory.validateObject(value)) {
+            destroy(pool, value);
             return;
         }
-        PooledObject<V> newPoolObj = asPooledObject(value);
-        Queue<PooledObject<V>> queue = _poolMap.get(key);
-        if (queue == null) {
-            Queue<PooledObject<V>> newQueue = new ConcurrentLinkedQueue<PooledObject<V>>();
-            Queue<PooledObject<V>> existingQueue = _poolMap.putIfAbsent(key, newQueue);
-            if (existingQueue != null) {
-                existingQueue.offer(newPoolObj);
+        final PooledObject<V> pooled = new PooledObject<V>(value);
+        if (!pool.offer(pooled)) {
+            // not borrowed from this pool, whose key was dropped meanwhile
+            while (!getPool(key).adopt(pooled)) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * Destroys a borrowed object that turned out to be broken.
+     */
+    public void invalidateObject(K key, V value) {
+        destroy(getPool(key), value);
+    }
+
+    /**
+     * Creates idle objects of the key up to <code>minIdlePerKey</code> in background.
+     */
+    public void preWarm(final K key) {
+        final ExecutorService warmer = _warmer;
+        if (warmer == null || _closed) {
+            return;
+        }
+        final KeyedPool pool = getPool(key);
+        if (!pool.warming.compareAndSet(false, true)) {
+            return; // already scheduled
+        }
+        try {
+            warmer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pool.warming.set(false);
+                    ensureMinIdle(pool, key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pool.warming.set(false); // closed
+        }
+    }
+
+    private void ensureMinIdle(@Nonnull final KeyedPool pool, final K key) {
+        while (!_closed && pool.reserveForIdle(_minIdlePerKey)) {
+            final V value;
+            try {
+                value = create(pool, key);
+            } catch (IllegalStateException e) {
+                LOG.warn("Failed to pre-warm an object for " + key, e);
+                return;
+            }
+            pool.offer(new PooledObject<V>(value));
+        }
+    }
+
+    @Nonnull
+    private KeyedPool getPool(final K key) {
+        KeyedPool pool = _poolMap.get(key);
+        if (pool == null) {
+            pool = new KeyedPool();
+            KeyedPool existing = _poolMap.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
             } else {
-                newQueue.offer(newPoolObj);
+                preWarm(key);
             }
-        } else {
-            queue.offer(newPoolObj);
         }
+        return pool;
+    }
+
+    /**
+     * Creates an object in a slot reserved by {@link KeyedPool#take(Object, long)}.
+     */
+    @Nonnull
+    private V create(@Nonnull final KeyedPool pool, final K key) {
+        final V value;
+        try {
+            value = _factory.makeObject(key);
+        } catch (RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+        if (value == null) {
+            pool.release();
+            throw new IllegalStateException("Failed to create an object for " + key);
+        }
+        _created.incrementAndGet();
+        return value;
+    }
+
+    private void destroy(@Nonnull final KeyedPool pool, @Nullable final V value) {
+        pool.release();
+        _destroyed.incrementAndGet();
+        if (value != null && _factory.isValueCloseable()) {
+            _factory.closeValue(value);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // metrics
+
+    /**
+     * @return the number of idle objects of the key
+     */
+    public int getNumIdle(K key) {
+        final KeyedPool pool = _poolMap.get(key);
+        return (pool == null) ? 0 : pool.getNumIdle();
+    }
+
+    /**
+     * @return the number of borrowed objects of the key
+     */
+    public int getNumActive(K key) {
+        final KeyedPool pool = _poolMap.get(key);
+        return (pool == null) ? 0 : pool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        int sum = 0;
+        for (KeyedPool pool : _poolMap.values()) {
+            sum += pool.getNumIdle();
+        }
+        return sum;
+    }
+
+    public int getNumActive() {
+        int sum = 0;
+        for (KeyedPool pool : _poolMap.values()) {
+            sum += pool.getNumActive();
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of threads waiting for an object
+     */
+    public int getNumWaiters() {
+        int sum = 0;
+        for (KeyedPool pool : _poolMap.values()) {
+            sum += pool.getNumWaiters();
+        }
+        return sum;
+    }
+
+    public long getCreatedCount() {
+        return _created.get();
+    }
+
+    public long getDestroyedCount() {
+        return _destroyed.get();
+    }
+
+    public long getBorrowedCount() {
+        return _borrowed.get();
+    }
+
+    public long getReturnedCount() {
+        return _returned.get();
+    }
+
+    /**
+     * @return the number of idle objects evicted by expiration or invalidation
+     */
+    public long getEvictedCount() {
+        return _evicted.get();
+    }
+
+    /**
+     * @return the number of borrows that had to wait for an object
+     */
+    public long getWaitedCount() {
+        return _waited.get();
     }
 
-    private static <V> PooledObject<V> asPooledObject(V value) {
-        return new PooledObject<V>(value);
+    /**
+     * @return the number of borrows that gave up waiting
+     */
+    public long getTimedOutCount() {
+        return _timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentKeyedStackObjectPool [active=" + getNumActive() + ", idle="
+                + getNumIdle() + ", waiters=" + getNumWaiters() + ", created=" + _created
+                + ", destroyed=" + _destroyed + ", borrowed=" + _borrowed + ", returned="
+                + _returned + ", evicted=" + _evicted + ", waited=" + _waited + ", timedOut="
+                + _timedOut + "]";
     }
 
     private static final class PooledObject<V> {
         final V value;
-        volatile long lastAccessTime;
+        final long lastAccessTime;
 
         public PooledObject(V value) {
             this.value = value;
@@ -99,6 +371,237 @@ public final class ConcurrentKeyedStackObjectPool<K, V> implements Closeable {
         }
     }
 
+    /**
+     * The objects of a key. The head of the idle deque is the most recently returned one.
+     */
+    private final class KeyedPool {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition available = lock.newCondition();
+        final ArrayDeque<PooledObject<V>> idle = new ArrayDeque<PooledObject<V>>();
+        /** the number of objects either idle or in use, guarded by lock */
+        int total = 0;
+        /** guarded by lock */
+        int waiters = 0;
+        /** true while pre-warming is scheduled */
+        final AtomicBoolean warming = new AtomicBoolean(false);
+        /** true once dropped from the map, guarded by lock */
+        boolean dropped = false;
+
+        /**
+         * @return an idle object, null if a slot was reserved to create a new object, or
+         *         {@link ConcurrentKeyedStackObjectPool#_dropped} if this pool was dropped
+         * @throws NoSuchElementException on timeout
+         */
+        @Nullable
+        PooledObject<V> take(final K key, final long deadline) {
+            boolean waited = false;
+            lock.lock();
+            try {
+                while (true) {
+                    if (_closed) {
+                        throw new IllegalStateException("The pool is already closed");
+                    }
+                    if (dropped) {
+                        return _dropped;
+                    }
+                    final PooledObject<V> pooled = _lifo ? idle.pollFirst() : idle.pollLast();
+                    if (pooled != null) {
+                        return pooled;
+                    }
+                    if (total < _maxPerKey) {
+                        total++;
+                        return null;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (_maxWaitMillis >= 0L && remaining <= 0L) {
+                        _timedOut.incrementAndGet();
+                        throw new NoSuchElementException("Timed out waiting for an object of "
+                                + key + " after " + _maxWaitMillis + " ms");
+                    }
+                    if (!waited) {
+                        waited = true;
+                        _waited.incrementAndGet();
+                    }
+                    waiters++;
+                    try {
+                        if (_maxWaitMillis < 0L) {
+                            available.await();
+                        } else {
+                            available.awaitNanos(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for " + key,
+                            e);
+                    } finally {
+                        waiters--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reserves a slot for a new idle object if there are less than minIdle idle objects.
+         */
+        boolean reserveForIdle(final int minIdle) {
+            lock.lock();
+            try {
+                if (dropped || idle.size() >= minIdle || total >= _maxPerKey) {
+                    return false;
+                }
+                total++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return false if this pool was dropped
+         */
+        boolean offer(@Nonnull final PooledObject<V> pooled) {
+            lock.lock();
+            try {
+                if (dropped) {
+                    return false;
+                }
+                idle.offerFirst(pooled);
+                available.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds an object not counted by this pool.
+         *
+         * @return false if this pool was dropped
+         */
+        boolean adopt(@Nonnull final PooledObject<V> pooled) {
+            lock.lock();
+            try {
+                if (dropped) {
+                    return false;
+                }
+                total++;
+                idle.offerFirst(pooled);
+                available.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marks this pool dropped if it has no object, nor a borrower waiting or pre-warming.
+         *
+         * @return true if dropped
+         */
+        boolean dropIfUnused() {
+            lock.lock();
+            try {
+                if (idle.isEmpty() && total <= 0 && waiters == 0 && !warming.get()) {
+                    this.dropped = true;
+                }
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Frees the slot of a destroyed object or a failed creation.
+         */
+        void release() {
+            lock.lock();
+            try {
+                if (total > 0) {
+                    total--;
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes the idle objects expired or invalid by scanning all of them.
+         */
+        @Nonnull
+        List<V> evict(final long timeNow, final long timeToLive) {
+            final List<V> evicted = new ArrayList<V>();
+            lock.lock();
+            try {
+                final Iterator<PooledObject<V>> itor = idle.iterator();
+                while (itor.hasNext()) {
+                    final PooledObject<V> pooled = itor.next();
+                    final V value = pooled.getValue();
+                    final long timeIdle = timeNow - pooled.getLastAccessTime();
+                    if (timeIdle >= timeToLive || !_factory.validateObject(value)) {
+                        itor.remove();
+                        total--;
+                        evicted.add(value);
+                    }
+                }
+                if (!evicted.isEmpty()) {
+                    available.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return evicted;
+        }
+
+        @Nonnull
+        List<V> clear() {
+            final List<V> values = new ArrayList<V>();
+            lock.lock();
+            try {
+                PooledObject<V> pooled;
+                while ((pooled = idle.poll()) != null) {
+                    values.add(pooled.getValue());
+                    total--;
+                }
+                available.signalAll(); // wake up the waiters to fail
+            } finally {
+                lock.unlock();
+            }
+            return values;
+        }
+
+        int getNumIdle() {
+            lock.lock();
+            try {
+                return idle.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getNumActive() {
+            lock.lock();
+            try {
+                return total - idle.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getNumWaiters() {
+            lock.lock();
+            try {
+                return waiters;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
     private final class Expirer extends TimerTask {
 
         final int timeToLive;
@@ -110,39 +613,24 @@ public final class ConcurrentKeyedStackObjectPool<K, V> implements Closeable {
         @Override
         public void run() {
             final long timeNow = System.currentTimeMillis();
-            final Iterator<Queue<PooledObject<V>>> outerItor = _poolMap.values().iterator();
-            outer: while (outerItor.hasNext()) {
-                Queue<PooledObject<V>> pool = outerItor.next();
-                final Iterator<PooledObject<V>> innerItor = pool.iterator();
-                while (innerItor.hasNext()) {
-                    PooledObject<V> pooledObj = innerItor.next();
-                    V value = pooledObj.getValue();
-                    long timeIdle = timeNow - pooledObj.getLastAccessTime();
-                    if (_factory.validateObject(value) && timeIdle < timeToLive) {
-                        continue outer; // make it live in the pool
+            for (Map.Entry<K, KeyedPool> e : _poolMap.entrySet()) {
+                final KeyedPool pool = e.getValue();
+                final List<V> evicted = pool.evict(timeNow, timeToLive);
+                for (V value : evicted) {
+                    _evicted.incrementAndGet();
+                    _destroyed.incrementAndGet();
+                    if (_factory.isValueCloseable()) {
+                        _factory.closeValue(value);
                     }
-                    innerItor.remove();
-                    _factory.closeValue(value);
                 }
-                if (pool.isEmpty()) {
-                    outerItor.remove();
-                }
-            }
-        }
-
-        @Override
-        public boolean cancel() {
-            final Iterator<Queue<PooledObject<V>>> poolItor = _poolMap.values().iterator();
-            while (poolItor.hasNext()) {
-                final Queue<PooledObject<V>> pool = poolItor.next();
-                PooledObject<V> pooledObj;
-                while ((pooledObj = pool.poll()) != null) {
-                    V value = pooledObj.getValue();
-                    _factory.closeValue(value);
+                if (_minIdlePerKey == 0) {
+                    if (pool.dropIfUnused()) {
+                        _poolMap.remove(e.getKey(), pool);
+                    }
+                } else {
+                    preWarm(e.getKey());
                 }
-                poolItor.remove();
             }
-            return super.cancel();
         }
 
     }
@@ -151,18 +639,25 @@ public final class ConcurrentKeyedStackObjectPool<K, V> implements Closeable {
         close(true);
     }
 
+    /**
+     * Closes the pool. Objects borrowed at the time are destroyed when returned.
+     *
+     * @param cleanup close the idle objects
+     */
     public void close(boolean cleanup) throws IOException {
+        this._closed = true;
         _sweepTimer.cancel();
-        if (cleanup && _factory.isValueCloseable()) {
-            for (Queue<PooledObject<V>> p : _poolMap.values()) {
-                for (PooledObject<V> pooledObj : p) {
-                    V v = pooledObj.getValue();
+        if (_warmer != null) {
+            _warmer.shutdownNow();
+        }
+        for (KeyedPool pool : _poolMap.values()) {
+            final List<V> values = pool.clear();
+            if (cleanup && _factory.isValueCloseable()) {
+                for (V v : values) {
                     _factory.closeValue(v);
                 }
             }
-
         }
-        _poolMap.clear();
     }
 
 }
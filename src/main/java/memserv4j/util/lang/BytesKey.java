@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.lang;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A byte array usable as a key of hash based collections. The array MUST NOT be modified.
+ */
+public final class BytesKey {
+
+    @Nonnull
+    private final byte[] bytes;
+    private final int hash;
+
+    public BytesKey(@Nonnull byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = HashUtils.murmurhash3(bytes);
+    }
+
+    @Nonnull
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BytesKey)) {
+            return false;
+        }
+        BytesKey other = (BytesKey) obj;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+}
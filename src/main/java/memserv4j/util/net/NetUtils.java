@@ -18,8 +18,10 @@ package memserv4j.util.net;
 import memserv4j.Settings;
 import memserv4j.util.StringUtils;
 import memserv4j.util.SystemUtils;
+import memserv4j.util.io.IOUtils;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -27,10 +29,14 @@ import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Enumeration;
 import java.util.NoSuchElementException;
@@ -47,6 +53,10 @@ public final class NetUtils {
         BIND_NIC = Settings.getThroughSystemProperty("memserv4j.net.bind_interface");
     }
 
+    /** StandardSocketOptions.SO_REUSEPORT is available since Java 9 */
+    @Nullable
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePortOption();
+
     private NetUtils() {}
 
     /**
@@ -375,8 +385,81 @@ public final class NetUtils {
         }
     }
 
+    /**
+     * Parses "host:port" or "[IPv6 address]:port".
+     */
+    @Nonnull
+    public static InetSocketAddress parseSocketAddress(@Nonnull final String hostPort) {
+        final String s = hostPort.trim();
+        final int pos = s.lastIndexOf(':');
+        if (pos <= 0 || pos == s.length() - 1) {
+            throw new IllegalArgumentException("Illegal address (host:port): " + hostPort);
+        }
+        String host = s.substring(0, pos);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        final int port;
+        try {
+            port = Integer.parseInt(s.substring(pos + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal port number: " + hostPort, e);
+        }
+        return new InetSocketAddress(host, port);
+    }
+
     public static boolean isIPAddress(final String ip) {
         return ip.matches(
             "^(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])$");
     }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static SocketOption<Boolean> lookupReusePortOption() {
+        try {
+            Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) field.get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if listener sockets can share a port by SO_REUSEPORT
+     */
+    public static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        ServerSocketChannel ch = null;
+        try {
+            ch = ServerSocketChannel.open();
+            return ch.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(ch);
+        }
+    }
+
+    /**
+     * Enables SO_REUSEPORT of the given channel. MUST be called before bind.
+     * 
+     * @return false if SO_REUSEPORT is not supported
+     */
+    public static boolean setReusePort(@Nonnull final NetworkChannel ch) {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        if (!ch.supportedOptions().contains(SO_REUSEPORT)) {
+            return false;
+        }
+        try {
+            ch.setOption(SO_REUSEPORT, Boolean.TRUE);
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.netty;
+
+import javax.annotation.Nonnull;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+
+public final class NettyUtils {
+
+    private NettyUtils() {}
+
+    /**
+     * Runs the task in the I/O thread of the channel after the events being processed, that is,
+     * after all of the messages decoded from the current read were handled.
+     */
+    public static void executeLater(@Nonnull final Channel channel,
+            @Nonnull final Runnable task) {
+        if (channel instanceof NioSocketChannel) {
+            ((NioSocketChannel) channel).getWorker().executeInIoThread(task, true);
+        } else {
+            channel.getPipeline().execute(task);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.netty;
+
+import memserv4j.util.net.NetUtils;
+
+import java.lang.reflect.Field;
+import java.nio.channels.NetworkChannel;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * A parent handler of {@code ServerBootstrap} that enables SO_REUSEPORT of the server socket
+ * before it is bound, so that multiple listeners can accept connections of the same port.
+ * <p>
+ * Netty 3 does not expose the option, thus the underlying {@link NetworkChannel} is looked up
+ * reflectively.
+ */
+public final class ReusePortHandler extends SimpleChannelUpstreamHandler {
+    private static final Log LOG = LogFactory.getLog(ReusePortHandler.class);
+
+    public ReusePortHandler() {
+        super();
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final Channel channel = e.getChannel();
+        final NetworkChannel socket = getNetworkChannel(channel);
+        if (socket == null || !NetUtils.setReusePort(socket)) {
+            LOG.warn("Failed to enable SO_REUSEPORT: " + channel);
+        }
+        ctx.sendUpstream(e);
+    }
+
+    @Nullable
+    private static NetworkChannel getNetworkChannel(final Channel channel) {
+        Class<?> clazz = channel.getClass();
+        while (clazz != null) {
+            try {
+                Field field = clazz.getDeclaredField("socket");
+                field.setAccessible(true);
+                Object socket = field.get(channel);
+                if (socket instanceof NetworkChannel) {
+                    return (NetworkChannel) socket;
+                }
+                return null;
+            } catch (NoSuchFieldException nsfe) {
+                clazz = clazz.getSuperclass();
+            } catch (Exception ex) {
+                LOG.debug("Failed to resolve the socket of " + channel, ex);
+                return null;
+            }
+        }
+        return null;
+    }
+
+}
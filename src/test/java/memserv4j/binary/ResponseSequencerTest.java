@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.binary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import memserv4j.binary.ResponseSequencer.Slot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseSequencerTest {
+
+    private EncoderEmbedder<Object> embedder;
+    private ResponseSequencer sequencer;
+
+    @Before
+    public void setUp() {
+        this.embedder = new EncoderEmbedder<Object>(new SimpleChannelDownstreamHandler() {
+            @Override
+            public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+                e.getFuture().setSuccess();
+                ctx.sendDownstream(e);
+            }
+        });
+        this.sequencer = new ResponseSequencer(embedder.getPipeline().getChannel());
+    }
+
+    @Test
+    public void testOutOfOrderCompletion() {
+        Slot s1 = sequencer.next();
+        Slot s2 = sequencer.next();
+        Slot s3 = sequencer.next();
+
+        s3.complete("3");
+        s2.complete("2");
+        assertNull(embedder.poll());
+        assertEquals(3, sequencer.pending());
+
+        s1.complete("1");
+        assertEquals("1", embedder.poll());
+        assertEquals("2", embedder.poll());
+        assertEquals("3", embedder.poll());
+        assertNull(embedder.poll());
+        assertEquals(0, sequencer.pending());
+    }
+
+    @Test
+    public void testQuietSlots() {
+        Slot getq = sequencer.next();
+        Slot noop = sequencer.next();
+
+        noop.complete("noop");
+        assertNull(embedder.poll());
+        getq.complete(null);
+        assertEquals("noop", embedder.poll());
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testDiscardAfterClose() {
+        Slot get = sequencer.next();
+        Slot quit = sequencer.next();
+        Slot after = sequencer.next();
+
+        after.complete("after");
+        quit.completeAndClose("quit", null);
+        get.complete("get");
+        assertEquals("get", embedder.poll());
+        assertEquals("quit", embedder.poll());
+        assertNull(embedder.poll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompleteTwice() {
+        Slot slot = sequencer.next();
+        slot.complete("1");
+        slot.complete("2");
+    }
+
+    @Test
+    public void testConcurrentCompletion() throws InterruptedException {
+        final int n = 10000;
+        final List<Slot> slots = new ArrayList<Slot>(n);
+        final List<Integer> order = new ArrayList<Integer>(n);
+        for (int i = 0; i < n; i++) {
+            slots.add(sequencer.next());
+            order.add(Integer.valueOf(i));
+        }
+        Collections.shuffle(order);
+
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < n; i += threads) {
+                        Integer idx = order.get(i);
+                        slots.get(idx.intValue()).complete(idx);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        if (!done.await(30, TimeUnit.SECONDS)) {
+            fail("Timed out");
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(Integer.valueOf(i), embedder.poll());
+        }
+        assertNull(embedder.poll());
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static memserv4j.binary.BinaryProtocol.OPCODE_DELETE;
+import static memserv4j.binary.BinaryProtocol.OPCODE_DELETEQ;
+import static memserv4j.binary.BinaryProtocol.OPCODE_GET;
+import static memserv4j.binary.BinaryProtocol.OPCODE_SET;
+import static org.junit.Assert.assertEquals;
+
+import memserv4j.AsyncMemcachedCommandHandler;
+import memserv4j.binary.BinaryPipelineFactory;
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.util.MemcachedUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.Test;
+
+public class BinaryCommandProxyTest {
+
+    private static final SocketAddress OWNER = new InetSocketAddress("10.0.1.1", 11211);
+    private static final SocketAddress REPLICA = new InetSocketAddress("10.0.1.2", 11211);
+
+    private final NodeLocator failover =
+            new KetamaNodeLocator(KetamaNodeLocator.parseNodes("10.0.2.1:11211"));
+    private final byte[] key = bytes("user:1234");
+
+    @Test
+    public void testDeleteNotRetriedOnFailover() {
+        // the owner failed a delete, which must not be acknowledged by a non-owner
+        SocketAddress[] replicas = new SocketAddress[] {OWNER};
+        for (int attempt = 0; attempt < 3; attempt++) {
+            assertEquals(OWNER,
+                BinaryCommandProxy.getRetryTarget(replicas, failover, OPCODE_DELETE, key, attempt));
+            assertEquals(OWNER, BinaryCommandProxy.getRetryTarget(replicas, failover,
+                OPCODE_DELETEQ, key, attempt));
+        }
+        replicas = new SocketAddress[] {OWNER, REPLICA};
+        assertEquals(OWNER,
+            BinaryCommandProxy.getRetryTarget(replicas, failover, OPCODE_DELETE, key, 0));
+    }
+
+    @Test
+    public void testGetRetriedOnReplicasThenFailover() {
+        SocketAddress[] replicas = new SocketAddress[] {OWNER, REPLICA};
+        assertEquals(REPLICA,
+            BinaryCommandProxy.getRetryTarget(replicas, failover, OPCODE_GET, key, 0));
+        assertEquals(failover.getNode(key),
+            BinaryCommandProxy.getRetryTarget(replicas, failover, OPCODE_GET, key, 1));
+        assertEquals(OWNER,
+            BinaryCommandProxy.getRetryTarget(replicas, failover, OPCODE_GET, key, 2));
+        assertEquals(OWNER,
+            BinaryCommandProxy.getRetryTarget(new SocketAddress[] {OWNER}, null, OPCODE_GET, key,
+                0));
+    }
+
+    @Test
+    public void testPipelinedDeleteThenSetOnLocalServer() throws Exception {
+        // the server in the same JVM, reachable both by the network and by its handler
+        final ConcurrentMap<String, byte[]> store = new ConcurrentHashMap<String, byte[]>();
+        final ServerSocket backend = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final SocketAddress backendAddr = backend.getLocalSocketAddress();
+        startBackend(backend, store);
+
+        final KetamaCommandProxy proxy = new KetamaCommandProxy(new DefaultChannelGroup(),
+            Collections.singletonMap(backendAddr, Integer.valueOf(1)));
+        proxy.setLocalHandler(backendAddr, new MapCommandHandler(store));
+        final ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1));
+        bootstrap.setPipelineFactory(new BinaryPipelineFactory(proxy));
+        final Channel proxyChannel =
+                bootstrap.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            Socket client = new Socket();
+            client.connect(proxyChannel.getLocalAddress());
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            store.put("k", MemcachedUtils.makeInternalValue(bytes("old"), 0));
+            // the set must not be served by the handler ahead of the delete sent upstream
+            writeRequest(out, OPCODE_DELETE, "k", null);
+            writeRequest(out, OPCODE_SET, "k", "new");
+            out.flush();
+            assertEquals(0, readResponse(in).status);
+            assertEquals(0, readResponse(in).status);
+
+            writeRequest(out, OPCODE_GET, "k", null);
+            out.flush();
+            Response get = readResponse(in);
+            assertEquals(0, get.status);
+            assertEquals("new", get.value);
+            client.close();
+        } finally {
+            proxyChannel.close().awaitUninterruptibly();
+            proxy.close();
+            bootstrap.releaseExternalResources();
+            backend.close();
+        }
+    }
+
+    /**
+     * Serves GET, SET and DELETE by the given map, and delays DELETE so that a request overtaking
+     * it shows.
+     */
+    private static void startBackend(@Nonnull final ServerSocket backend,
+            @Nonnull final ConcurrentMap<String, byte[]> store) {
+        Thread acceptor = new Thread("backend") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket sock = backend.accept();
+                        Thread worker = new Thread("backend-worker") {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(sock, store);
+                                } catch (IOException e) {
+                                    ; // closed
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        };
+                        worker.setDaemon(true);
+                        worker.start();
+                    }
+                } catch (IOException e) {
+                    ; // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void serve(@Nonnull final Socket sock,
+            @Nonnull final ConcurrentMap<String, byte[]> store)
+            throws IOException, InterruptedException {
+        final DataInputStream in = new DataInputStream(sock.getInputStream());
+        final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+        while (true) {
+            in.readByte(); // magic
+            final byte opcode = in.readByte();
+            final int keylen = in.readUnsignedShort();
+            final int extralen = in.readUnsignedByte();
+            in.skipBytes(3); // data type and vbucket
+            final int totalBody = in.readInt();
+            final int opaque = in.readInt();
+            in.skipBytes(8); // cas
+            final byte[] extras = new byte[extralen];
+            in.readFully(extras);
+            final byte[] keyBytes = new byte[keylen];
+            in.readFully(keyBytes);
+            final byte[] value = new byte[totalBody - extralen - keylen];
+            in.readFully(value);
+            final String key = new String(keyBytes, StandardCharsets.US_ASCII);
+
+            short status = 0;
+            byte[] resValue = null;
+            switch (opcode) {
+                case OPCODE_GET: {
+                    byte[] stored = store.get(key);
+                    if (stored == null) {
+                        status = BinaryProtocol.ResponseStatus.KEY_NOT_FOUND.status;
+                    } else {
+                        resValue = MemcachedUtils.getValue(stored);
+                    }
+                    break;
+                }
+                case OPCODE_SET:
+                    store.put(key, MemcachedUtils.makeInternalValue(value, 0));
+                    break;
+                case OPCODE_DELETE:
+                    Thread.sleep(100L);
+                    if (store.remove(key) == null) {
+                        status = BinaryProtocol.ResponseStatus.KEY_NOT_FOUND.status;
+                    }
+                    break;
+                default:
+                    status = BinaryProtocol.ResponseStatus.NOT_SUPPORTED.status;
+            }
+            final int resExtralen = (resValue == null) ? 0 : 4;
+            final int resValueLength = (resValue == null) ? 0 : resValue.length;
+            out.writeByte(BinaryProtocol.MAGIC_BYTE_RESPONSE);
+            out.writeByte(opcode);
+            out.writeShort(0);
+            out.writeByte(resExtralen);
+            out.writeByte(0);
+            out.writeShort(status);
+            out.writeInt(resExtralen + resValueLength);
+            out.writeInt(opaque);
+            out.writeLong(0L);
+            if (resValue != null) {
+                out.writeInt(0); // flags
+                out.write(resValue);
+            }
+            out.flush();
+        }
+    }
+
+    private static void writeRequest(@Nonnull final DataOutputStream out, final byte opcode,
+            @Nonnull final String key, final String value) throws IOException {
+        final byte[] k = bytes(key);
+        final int extralen = (value == null) ? 0 : 8;
+        final byte[] v = (value == null) ? new byte[0] : bytes(value);
+        out.writeByte(BinaryProtocol.MAGIC_BYTE_REQUEST);
+        out.writeByte(opcode);
+        out.writeShort(k.length);
+        out.writeByte(extralen);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(extralen + k.length + v.length);
+        out.writeInt(0); // opaque
+        out.writeLong(0L); // cas
+        if (value != null) {
+            out.writeInt(0); // flags
+            out.writeInt(0); // expiration
+        }
+        out.write(k);
+        out.write(v);
+    }
+
+    @Nonnull
+    private static Response readResponse(@Nonnull final DataInputStream in) throws IOException {
+        in.skipBytes(2); // magic and opcode
+        final int keylen = in.readUnsignedShort();
+        final int extralen = in.readUnsignedByte();
+        in.skipBytes(1); // data type
+        final short status = in.readShort();
+        final int totalBody = in.readInt();
+        in.skipBytes(12); // opaque and cas
+        in.skipBytes(extralen + keylen);
+        final byte[] value = new byte[totalBody - extralen - keylen];
+        in.readFully(value);
+        return new Response(status, new String(value, StandardCharsets.US_ASCII));
+    }
+
+    @Nonnull
+    private static byte[] bytes(@Nonnull final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class Response {
+        final short status;
+        @Nonnull
+        final String value;
+
+        Response(short status, @Nonnull String value) {
+            this.status = status;
+            this.value = value;
+        }
+    }
+
+    private static final class MapCommandHandler implements AsyncMemcachedCommandHandler {
+
+        @Nonnull
+        private final ConcurrentMap<String, byte[]> store;
+
+        MapCommandHandler(@Nonnull ConcurrentMap<String, byte[]> store) {
+            this.store = store;
+        }
+
+        @Override
+        public CompletionStage<byte[]> handleGet(byte[] key) {
+            return CompletableFuture.completedFuture(
+                store.get(new String(key, StandardCharsets.US_ASCII)));
+        }
+
+        @Override
+        public CompletionStage<Short> handleSet(byte[] key, byte[] value, int flags,
+                int expiry) {
+            store.put(new String(key, StandardCharsets.US_ASCII), value);
+            return CompletableFuture.completedFuture(Short.valueOf((short) 0));
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The expected nodes were computed by a straight transliteration of
+ * <code>ketama_create_continuum</code> and <code>ketama_get_server</code> of libketama, with the
+ * servers given as "host:port" and their weights as the memory column of a ketama server list.
+ */
+public class KetamaNodeLocatorTest {
+
+    private static final String[][] EQUAL = {{"", "10.0.1.3:11211"},
+            {"foo", "10.0.1.2:11211"}, {"bar", "10.0.1.1:11211"}, {"key0", "10.0.1.1:11211"},
+            {"key1", "10.0.1.2:11211"}, {"key2", "10.0.1.1:11211"}, {"key3", "10.0.1.1:11211"},
+            {"key4", "10.0.1.2:11211"}, {"key5", "10.0.1.3:11211"}, {"key6", "10.0.1.1:11211"},
+            {"key7", "10.0.1.3:11211"}, {"user:1234", "10.0.1.1:11211"},
+            {"session:abcdef", "10.0.1.2:11211"}, {"http://example.com/", "10.0.1.3:11211"},
+            {"0123456789abcdef0123456789", "10.0.1.1:11211"}};
+
+    private static final String[][] WEIGHTED = {{"", "10.0.1.1:11211"},
+            {"foo", "10.0.1.2:11211"}, {"bar", "10.0.1.1:11211"}, {"key0", "10.0.1.1:11211"},
+            {"key1", "10.0.1.4:11211"}, {"key2", "10.0.1.1:11211"}, {"key3", "10.0.1.1:11211"},
+            {"key4", "10.0.1.2:11211"}, {"key5", "10.0.1.1:11211"}, {"key6", "10.0.1.1:11211"},
+            {"key7", "10.0.1.3:11211"}, {"user:1234", "10.0.1.1:11211"},
+            {"session:abcdef", "10.0.1.2:11211"}, {"http://example.com/", "10.0.1.1:11211"},
+            {"0123456789abcdef0123456789", "10.0.1.1:11211"}};
+
+    @Test
+    public void testHash() {
+        // the first 4 bytes of MD5 in little endian
+        assertEquals(3649838548L, KetamaNodeLocator.hash(bytes("")));
+        assertEquals(3675831724L, KetamaNodeLocator.hash(bytes("foo")));
+        assertEquals(3891683073L, KetamaNodeLocator.hash(bytes("user:1234")));
+    }
+
+    @Test
+    public void testEqualWeights() {
+        KetamaNodeLocator locator =
+                new KetamaNodeLocator(KetamaNodeLocator.parseNodes("10.0.1.1:11211,"
+                        + "10.0.1.2:11211,10.0.1.3:11211"));
+        assertEquals(3 * 160, locator.getNumberOfPoints());
+        assertNodes(EQUAL, locator);
+    }
+
+    @Test
+    public void testWeights() {
+        KetamaNodeLocator locator = new KetamaNodeLocator(KetamaNodeLocator.parseNodes(
+            "10.0.1.1:11211=600,10.0.1.2:11211=300,10.0.1.3:11211=200,10.0.1.4:11211=100"));
+        // libketama floors the points of each node: 320 + 160 + 104 + 52
+        assertEquals(636, locator.getNumberOfPoints());
+        assertNodes(WEIGHTED, locator);
+    }
+
+    @Test
+    public void testGetNodes() {
+        KetamaNodeLocator locator =
+                new KetamaNodeLocator(KetamaNodeLocator.parseNodes("10.0.1.1:11211,"
+                        + "10.0.1.2:11211,10.0.1.3:11211"));
+        for (String[] entry : EQUAL) {
+            byte[] key = bytes(entry[0]);
+            SocketAddress[] nodes = locator.getNodes(key, 5);
+            assertEquals(3, nodes.length);
+            assertSame(locator.getNode(key), nodes[0]);
+            assertEquals(3, new HashSet<SocketAddress>(Arrays.asList(nodes)).size());
+        }
+    }
+
+    @Test
+    public void testRemoveNode() {
+        Map<SocketAddress, Integer> weights = new LinkedHashMap<SocketAddress, Integer>();
+        for (int i = 1; i <= 4; i++) {
+            weights.put(new InetSocketAddress("10.0.1." + i, 11211), 1);
+        }
+        KetamaNodeLocator before = new KetamaNodeLocator(weights);
+        SocketAddress removed = new InetSocketAddress("10.0.1.4", 11211);
+        weights.remove(removed);
+        KetamaNodeLocator after = new KetamaNodeLocator(weights);
+
+        // only the keys of the removed node move
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = bytes("key" + i);
+            SocketAddress node = before.getNode(key);
+            if (!node.equals(removed)) {
+                assertEquals(node, after.getNode(key));
+            }
+        }
+    }
+
+    private static void assertNodes(String[][] expected, KetamaNodeLocator locator) {
+        for (String[] entry : expected) {
+            assertEquals(entry[0], entry[1], toString(locator.getNode(bytes(entry[0]))));
+        }
+    }
+
+    private static String toString(SocketAddress node) {
+        InetSocketAddress addr = (InetSocketAddress) node;
+        return addr.getHostString() + ':' + addr.getPort();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
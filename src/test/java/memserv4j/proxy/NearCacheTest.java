@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+    private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VALUE = "value".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testPut() {
+        NearCache cache = new NearCache(100, 60000L, 1024, 1);
+        assertNull(cache.get(KEY));
+        cache.put(KEY, 7, VALUE, 1L, cache.generation(KEY));
+        NearCache.Entry e = cache.get(KEY);
+        assertNotNull(e);
+        assertEquals(7, e.flags);
+        assertArrayEquals(VALUE, e.value);
+    }
+
+    @Test
+    public void testWriteBeforeFill() {
+        NearCache cache = new NearCache(100, 60000L, 1024, 1);
+        cache.get(KEY);
+        // a get is sent, and then a write of the key is acknowledged before the get response
+        long generation = cache.generation(KEY);
+        cache.invalidate(KEY);
+        cache.put(KEY, 0, VALUE, 1L, generation);
+        assertNull(cache.get(KEY));
+
+        // a get sent afterwards is cached
+        cache.put(KEY, 0, VALUE, 2L, cache.generation(KEY));
+        assertNotNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testClearBeforeFill() {
+        NearCache cache = new NearCache(100, 60000L, 1024, 1);
+        cache.get(KEY);
+        long generation = cache.generation(KEY);
+        cache.clear();
+        cache.put(KEY, 0, VALUE, 1L, generation);
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testAdmission() {
+        NearCache cache = new NearCache(100, 60000L, 1024, 2);
+        cache.get(KEY);
+        cache.put(KEY, 0, VALUE, 1L, cache.generation(KEY));
+        // the second access admits the key
+        assertNull(cache.get(KEY));
+        cache.put(KEY, 0, VALUE, 1L, cache.generation(KEY));
+        assertNotNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testMaxValueSize() {
+        NearCache cache = new NearCache(100, 60000L, VALUE.length - 1, 1);
+        cache.get(KEY);
+        cache.put(KEY, 0, VALUE, 1L, cache.generation(KEY));
+        assertNull(cache.get(KEY));
+    }
+
+}
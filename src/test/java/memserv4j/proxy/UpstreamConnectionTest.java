@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.proxy;
+
+import static memserv4j.binary.BinaryProtocol.OPCODE_GETK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import memserv4j.binary.BinaryProtocol;
+import memserv4j.binary.BinaryProtocol.Header;
+import memserv4j.binary.BinaryProtocol.Packet;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpstreamConnectionTest {
+
+    private HashedWheelTimer timer;
+    private EncoderEmbedder<ChannelBuffer> embedder;
+    private volatile boolean closeRequested;
+
+    @Before
+    public void setUp() {
+        this.timer = new HashedWheelTimer();
+        this.embedder = new EncoderEmbedder<ChannelBuffer>(new SimpleChannelDownstreamHandler() {
+            @Override
+            public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+                e.getFuture().setSuccess();
+                ctx.sendDownstream(e);
+            }
+
+            @Override
+            public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) {
+                closeRequested = true;
+            }
+        });
+        this.closeRequested = false;
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Nonnull
+    private UpstreamConnection newConnection(long readTimeoutMillis, int maxReadTimeouts) {
+        return new UpstreamConnection(new InetSocketAddress("127.0.0.1", 11211),
+            Channels.succeededFuture(embedder.getPipeline().getChannel()), timer, 0L,
+            readTimeoutMillis, maxReadTimeouts);
+    }
+
+    @Test
+    public void testOutOfOrderResponses() throws Exception {
+        UpstreamConnection conn = newConnection(0L, 0);
+        CompletableFuture<Packet> a = conn.send(getk("a", 7));
+        CompletableFuture<Packet> b = conn.send(getk("b", 7));
+        CompletableFuture<Packet> c = conn.send(getk("c", 7));
+        int opaqueA = writtenOpaque();
+        int opaqueB = writtenOpaque();
+        int opaqueC = writtenOpaque();
+        assertEquals(3, Arrays.asList(opaqueA, opaqueB, opaqueC).stream().distinct().count());
+
+        assertTrue(conn.complete(response("c", opaqueC)));
+        assertTrue(conn.complete(response("a", opaqueA)));
+        assertFalse(b.isDone());
+        assertTrue(conn.complete(response("b", opaqueB)));
+
+        assertEquals("a", keyOf(a.get()));
+        assertEquals("b", keyOf(b.get()));
+        assertEquals("c", keyOf(c.get()));
+        assertEquals(0, conn.getInflightCount());
+    }
+
+    @Test
+    public void testBatchedRequests() throws Exception {
+        UpstreamConnection conn = newConnection(0L, 0);
+        List<CompletableFuture<Packet>> results =
+                conn.send(Arrays.asList(getk("x", 0), getk("y", 0), getk("z", 0)));
+        ChannelBuffer written = embedder.poll();
+        assertNull(embedder.poll());
+        int[] opaques = new int[3];
+        for (int i = 0; i < 3; i++) {
+            Header header = new Header();
+            header.decode(written);
+            written.skipBytes(header.getTotalBody());
+            opaques[i] = header.getOpaque();
+        }
+
+        conn.complete(response("z", opaques[2]));
+        conn.complete(response("y", opaques[1]));
+        conn.complete(response("x", opaques[0]));
+        assertEquals("x", keyOf(results.get(0).get()));
+        assertEquals("y", keyOf(results.get(1).get()));
+        assertEquals("z", keyOf(results.get(2).get()));
+    }
+
+    @Test
+    public void testUnknownOpaque() {
+        UpstreamConnection conn = newConnection(0L, 0);
+        CompletableFuture<Packet> a = conn.send(getk("a", 0));
+        int opaque = writtenOpaque();
+
+        assertFalse(conn.complete(response("a", opaque + 1)));
+        assertFalse(a.isDone());
+        assertTrue(conn.complete(response("a", opaque)));
+        // a duplicated response is not matched again
+        assertFalse(conn.complete(response("a", opaque)));
+    }
+
+    @Test
+    public void testFailAll() throws Exception {
+        UpstreamConnection conn = newConnection(0L, 0);
+        CompletableFuture<Packet> a = conn.send(getk("a", 0));
+        CompletableFuture<Packet> b = conn.send(getk("b", 0));
+        conn.complete(response("a", writtenOpaque()));
+
+        conn.failAll();
+        assertEquals("a", keyOf(a.get()));
+        assertCause(ClosedChannelException.class, b);
+        assertEquals(0, conn.getInflightCount());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        UpstreamConnection conn = newConnection(50L, 3);
+        CompletableFuture<Packet> a = conn.send(getk("a", 0));
+        CompletableFuture<Packet> b = conn.send(getk("b", 0));
+        int opaqueA = writtenOpaque();
+        int opaqueB = writtenOpaque();
+        assertTrue(conn.complete(response("b", opaqueB)));
+
+        assertCause(TimeoutException.class, a);
+        assertEquals("b", keyOf(b.get()));
+        // the late response is discarded, and the connection is kept for the others
+        assertFalse(conn.complete(response("a", opaqueA)));
+        assertFalse(closeRequested);
+
+        CompletableFuture<Packet> c = conn.send(getk("c", 0));
+        assertTrue(conn.complete(response("c", writtenOpaque())));
+        assertEquals("c", keyOf(c.get()));
+    }
+
+    @Test
+    public void testConsecutiveReadTimeouts() throws Exception {
+        UpstreamConnection conn = newConnection(50L, 2);
+        CompletableFuture<Packet> a = conn.send(getk("a", 0));
+        writtenOpaque();
+        assertCause(TimeoutException.class, a);
+        assertFalse(closeRequested);
+
+        // a response in between resets the count
+        CompletableFuture<Packet> b = conn.send(getk("b", 0));
+        assertTrue(conn.complete(response("b", writtenOpaque())));
+        assertEquals("b", keyOf(b.get()));
+        CompletableFuture<Packet> c = conn.send(getk("c", 0));
+        writtenOpaque();
+        assertCause(TimeoutException.class, c);
+        assertFalse(closeRequested);
+
+        CompletableFuture<Packet> d = conn.send(getk("d", 0));
+        assertCause(TimeoutException.class, d);
+        // closed by the timer thread after failing the request
+        for (int i = 0; i < 100 && !closeRequested; i++) {
+            Thread.sleep(10L);
+        }
+        assertTrue(closeRequested);
+    }
+
+    static void assertCause(@Nonnull Class<? extends Throwable> expected,
+            @Nonnull CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getClass());
+            return;
+        }
+        throw new AssertionError("Not failed: " + future);
+    }
+
+    private int writtenOpaque() {
+        ChannelBuffer written = embedder.poll();
+        Header header = new Header();
+        header.decode(written);
+        return header.getOpaque();
+    }
+
+    @Nonnull
+    private static ChannelBuffer getk(@Nonnull String key, int opaque) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        Header header = new Header(BinaryProtocol.MAGIC_BYTE_REQUEST, OPCODE_GETK).opaque(opaque);
+        header.setBodyLength((byte) 0, k.length, 0);
+        ChannelBuffer buf = ChannelBuffers.buffer(BinaryProtocol.HEADER_LENGTH + k.length);
+        header.encode(buf);
+        buf.writeBytes(k);
+        return buf;
+    }
+
+    @Nonnull
+    private static Packet response(@Nonnull String key, int opaque) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        Header header = new Header(BinaryProtocol.MAGIC_BYTE_RESPONSE, OPCODE_GETK).opaque(opaque);
+        header.setBodyLength((byte) 0, k.length, 0);
+        return new Packet(header, ChannelBuffers.wrappedBuffer(k));
+    }
+
+    @Nonnull
+    private static String keyOf(@Nonnull Packet response) {
+        return response.getBody().toString(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 and onwards Makoto Yui
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package memserv4j.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import memserv4j.util.lang.PoolableObjectFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentKeyedStackObjectPoolTest {
+
+    @Test
+    public void testUnboundedByDefault() throws Exception {
+        Factory factory = new Factory(60000);
+        ConcurrentKeyedStackObjectPool<String, Object> pool =
+                new ConcurrentKeyedStackObjectPool<String, Object>("test", factory);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                pool.borrowObject("k");
+            }
+            assertEquals(1000, pool.getNumActive("k"));
+            assertEquals(0L, pool.getWaitedCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testLifo() throws Exception {
+        ConcurrentKeyedStackObjectPool<String, Object> pool =
+                new ConcurrentKeyedStackObjectPool<String, Object>("test", new Factory(60000));
+        try {
+            Object a = pool.borrowObject("k");
+            Object b = pool.borrowObject("k");
+            pool.returnObject("k", a);
+            pool.returnObject("k", b);
+            assertSame(b, pool.borrowObject("k"));
+            assertSame(a, pool.borrowObject("k"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testMaxPerKey() throws Exception {
+        ConcurrentKeyedStackObjectPool<String, Object> pool =
+                new ConcurrentKeyedStackObjectPool<String, Object>("test", new Factory(60000), 2,
+                    0, 50L, true);
+        try {
+            Object a = pool.borrowObject("k");
+            pool.borrowObject("k");
+            try {
+                pool.borrowObject("k");
+                fail("Borrowed more than maxPerKey");
+            } catch (NoSuchElementException e) {
+                assertEquals(1L, pool.getTimedOutCount());
+            }
+            // other keys are not limited by the key
+            pool.borrowObject("k2");
+
+            pool.returnObject("k", a);
+            assertSame(a, pool.borrowObject("k"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testWaitForReturn() throws Exception {
+        final ConcurrentKeyedStackObjectPool<String, Object> pool =
+                new ConcurrentKeyedStackObjectPool<String, Object>("test", new Factory(60000), 1,
+                    0, 5000L, true);
+        try {
+            final Object a = pool.borrowObject("k");
+            Thread returner = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    pool.returnObject("k", a);
+                }
+            };
+            returner.start();
+            assertSame(a, pool.borrowObject("k"));
+            assertEquals(1L, pool.getWaitedCount());
+            returner.join();
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static final class Factory implements PoolableObjectFactory<String, Object> {
+
+        final int timeToLive;
+        final AtomicInteger created = new AtomicInteger(0);
+
+        Factory(int timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        @Override
+        public Object makeObject(String key) {
+            return key + '#' + created.incrementAndGet();
+        }
+
+        @Override
+        public boolean validateObject(Object obj) {
+            return true;
+        }
+
+        @Override
+        public int getSweepInterval() {
+            return 1000;
+        }
+
+        @Override
+        public int getTimeToLive() {
+            return timeToLive;
+        }
+
+        @Override
+        public boolean isValueCloseable() {
+            return false;
+        }
+
+        @Override
+        public Exception closeValue(Object obj) {
+            return null;
+        }
+
+    }
+
+}